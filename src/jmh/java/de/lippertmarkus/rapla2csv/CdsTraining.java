@@ -0,0 +1,52 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the training export for the AppCDS archive: the fat jar exports two months from a fake rapla server in this
+ * process into a temporary CSV file, so the archive contains the classes of a real export, and dumps the loaded
+ * classes at exit.
+ * <p>
+ * Arguments: fat jar, AppCDS archive to create and java of JDK 13 or newer
+ */
+public class CdsTraining
+{
+    private CdsTraining()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3) {
+            System.err.println("Arguments: <fat jar> <AppCDS archive> <java>");
+            System.exit(1);
+        }
+
+        File fatJar = new File(args[0]);
+        File cdsArchive = new File(args[1]);
+        String java = args[2];
+
+        FakeRaplaServer server = new FakeRaplaServer(0);
+        Path output = Files.createTempFile("training", ".csv");
+        server.start();
+
+        try {
+            List<String> command = Arrays.asList(java, "-XX:ArchiveClassesAtExit=" + cdsArchive.getPath(), "-jar",
+                    fatJar.getPath(), "-f", "2016-01-04", "-u", "2016-02-28", "-l",
+                    server.getCalendarUri("training").toString(), "-o", output.toString());
+
+            int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+
+            if (exitCode != 0)
+                throw new IOException(String.join(" ", command) + " failed with exit code " + exitCode);
+        } finally {
+            server.stop();
+            Files.deleteIfExists(output);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CSV export of different numbers of lessons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvExportBenchmark
+{
+    private static final LocalDate DATE_FROM = LocalDate.of(1950, 1, 2);
+
+    @Param({"1000", "10000", "100000"})
+    public int lessons;
+
+    private RaplaReader raplaReader;
+
+    private File exportFile;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        // every week of the fixture contains the same lessons, so extract as many weeks as needed
+        RaplaReader weekReader = new RaplaReader(DATE_FROM, DATE_FROM.plusDays(6), "http://localhost/rapla?key=fixture");
+        weekReader.setTransport(new FixtureTransport());
+        int lessonsPerWeek = weekReader.getLessonsFromRapla().size();
+        int weeks = (lessons + lessonsPerWeek - 1) / lessonsPerWeek;
+
+        raplaReader = new RaplaReader(DATE_FROM, DATE_FROM.plusWeeks(weeks).minusDays(1),
+                "http://localhost/rapla?key=fixture");
+        raplaReader.setTransport(new FixtureTransport());
+        raplaReader.setParallelism(Runtime.getRuntime().availableProcessors());
+        raplaReader.getLessonsFromRapla();
+
+        exportFile = File.createTempFile("rapla-benchmark", ".csv");
+        exportFile.deleteOnExit();
+    }
+
+    @Benchmark
+    public void exportToCSV() throws Exception
+    {
+        raplaReader.exportToCSV(exportFile.getPath());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        exportFile.delete();
+    }
+}
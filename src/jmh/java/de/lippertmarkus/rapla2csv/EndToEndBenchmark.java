@@ -0,0 +1,48 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the extraction of a whole year of recorded week pages
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark
+{
+    private static final LocalDate DATE_FROM = LocalDate.of(2016, 1, 1);
+
+    private static final LocalDate DATE_UNTIL = LocalDate.of(2016, 12, 31);
+
+    @Param({"DOM", "STREAMING"})
+    public ExtractionEngine engine;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private FixtureTransport transport;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        transport = new FixtureTransport();
+    }
+
+    @Benchmark
+    public List<Lesson> getLessonsFromRapla() throws Exception
+    {
+        RaplaReader raplaReader = new RaplaReader(DATE_FROM, DATE_UNTIL, "http://localhost/rapla?key=fixture");
+        raplaReader.setTransport(transport);
+        raplaReader.setExtractionEngine(engine);
+        raplaReader.setParallelism(parallelism);
+
+        return raplaReader.getLessonsFromRapla();
+    }
+}
@@ -0,0 +1,85 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Transport answering every request with a recorded rapla week page, so benchmarks don't need a rapla server
+ */
+public class FixtureTransport implements RaplaTransport
+{
+    /**
+     * Name of the recorded week page resource
+     */
+    public static final String WEEK_PAGE = "week.html";
+
+    /**
+     * Content of the recorded page
+     */
+    private byte[] page;
+
+
+    /**
+     * Constructs a new transport with the recorded week page
+     *
+     * @throws IOException if the page couldn't be loaded
+     */
+    public FixtureTransport() throws IOException
+    {
+        this(WEEK_PAGE);
+    }
+
+    /**
+     * Constructs a new transport with a recorded page
+     *
+     * @param resourceName name of the page resource next to this class
+     * @throws IOException if the page couldn't be loaded
+     */
+    public FixtureTransport(String resourceName) throws IOException
+    {
+        page = loadResource(resourceName);
+    }
+
+    /**
+     * Loads a resource next to this class
+     *
+     * @param resourceName name of the resource
+     * @return content of the resource
+     * @throws IOException if the resource couldn't be read
+     */
+    public static byte[] loadResource(String resourceName) throws IOException
+    {
+        try (InputStream in = FixtureTransport.class.getResourceAsStream(resourceName)) {
+            if (in == null)
+                throw new IOException("Resource " + resourceName + " not found");
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while ((read = in.read(buffer)) != -1)
+                content.write(buffer, 0, read);
+
+            return content.toByteArray();
+        }
+    }
+
+    @Override
+    public RaplaResponse fetch(URI uri)
+    {
+        return new RaplaResponse(uri, page, "UTF-8");
+    }
+
+    @Override
+    public String getStatistics()
+    {
+        return "fixture";
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
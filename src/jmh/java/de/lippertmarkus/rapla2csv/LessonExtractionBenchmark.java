@@ -0,0 +1,45 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the extraction of a single lesson out of the recorded tooltips
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LessonExtractionBenchmark
+{
+    private static final LocalDate WEEK_MONDAY_DATE = LocalDate.of(2016, 10, 17);
+
+    private RaplaReader raplaReader;
+
+    private Elements tooltips;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        raplaReader = new RaplaReader(WEEK_MONDAY_DATE, WEEK_MONDAY_DATE.plusDays(6), "http://localhost/rapla?key=fixture");
+
+        String page = new String(FixtureTransport.loadResource(FixtureTransport.WEEK_PAGE), StandardCharsets.UTF_8);
+        tooltips = Jsoup.parse(page).select(".tooltip");
+    }
+
+    @Benchmark
+    public void extractLessonsOfTooltips(Blackhole blackhole) throws Exception
+    {
+        for (Element tooltip : tooltips)
+            blackhole.consume(raplaReader.extractLessonFromHtmlElement(WEEK_MONDAY_DATE, tooltip));
+    }
+}
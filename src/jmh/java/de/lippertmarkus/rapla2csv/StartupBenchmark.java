@@ -0,0 +1,118 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the wall time of whole program runs in new processes, which JMH doesn't cover: the fat jar on a plain JVM,
+ * the fat jar with the AppCDS archive and the native executable. Every variant prints its version and exports one
+ * week from a fake rapla server in this process. Variants which weren't built are skipped.
+ * <p>
+ * Arguments: fat jar, AppCDS archive, native executable, java for the jar variants and optionally the number of runs
+ */
+public class StartupBenchmark
+{
+    /**
+     * Runs per variant and workload which aren't measured, to get the files into the page cache
+     */
+    private static final int WARMUP_RUNS = 2;
+
+
+    private StartupBenchmark()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 4) {
+            System.err.println("Arguments: <fat jar> <AppCDS archive> <native executable> <java> [runs]");
+            System.exit(1);
+        }
+
+        File fatJar = new File(args[0]);
+        File cdsArchive = new File(args[1]);
+        File nativeExecutable = new File(args[2]);
+        String java = args[3];
+        int runs = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        Map<String, List<String>> variants = new LinkedHashMap<>();
+
+        if (fatJar.isFile()) {
+            variants.put("jar", Arrays.asList(java, "-jar", fatJar.getPath()));
+
+            if (cdsArchive.isFile())
+                variants.put("jar + AppCDS", Arrays.asList(java, "-XX:SharedArchiveFile=" + cdsArchive.getPath(),
+                        "-Xshare:on", "-jar", fatJar.getPath()));
+        }
+
+        if (nativeExecutable.canExecute())
+            variants.put("native", Collections.singletonList(nativeExecutable.getPath()));
+
+        FakeRaplaServer server = new FakeRaplaServer(0);
+        Path output = Files.createTempFile("startup", ".csv");
+        Path log = Files.createTempFile("startup", ".log");
+        server.start();
+
+        try {
+            Map<String, List<String>> workloads = new LinkedHashMap<>();
+            workloads.put("version", Collections.singletonList("-v"));
+            workloads.put("export", Arrays.asList("-f", "2016-01-04", "-u", "2016-01-10", "-l",
+                    server.getCalendarUri("startup").toString(), "-o", output.toString()));
+
+            System.out.printf("%-14s %-8s %10s %10s%n", "variant", "workload", "min ms", "median ms");
+
+            for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+                for (Map.Entry<String, List<String>> workload : workloads.entrySet()) {
+                    List<String> command = new ArrayList<>(variant.getValue());
+                    command.addAll(workload.getValue());
+
+                    for (int i = 0; i < WARMUP_RUNS; i++)
+                        run(command, log);
+
+                    long[] times = new long[runs];
+
+                    for (int i = 0; i < runs; i++)
+                        times[i] = run(command, log);
+
+                    Arrays.sort(times);
+                    System.out.printf("%-14s %-8s %10.1f %10.1f%n", variant.getKey(), workload.getKey(),
+                            times[0] / 1e6, times[runs / 2] / 1e6);
+                }
+            }
+        } finally {
+            server.stop();
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(log);
+        }
+    }
+
+    /**
+     * Runs a command and measures its wall time
+     *
+     * @param command command with arguments
+     * @param log     file for the output of the command
+     * @return wall time in nanoseconds
+     * @throws IOException if the command failed
+     */
+    private static long run(List<String> command, Path log) throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        int exitCode = process.waitFor();
+        long time = System.nanoTime() - start;
+
+        if (exitCode != 0)
+            throw new IOException(String.join(" ", command) + " failed with exit code " + exitCode + ":\n"
+                    + new String(Files.readAllBytes(log)));
+
+        return time;
+    }
+}
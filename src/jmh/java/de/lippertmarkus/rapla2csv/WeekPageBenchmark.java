@@ -0,0 +1,39 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding all tooltips of a recorded week page with the different extraction engines
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeekPageBenchmark
+{
+    private static final LocalDate WEEK_MONDAY_DATE = LocalDate.of(2016, 10, 17);
+
+    @Param({"DOM", "STREAMING"})
+    public ExtractionEngine engine;
+
+    private RaplaReader raplaReader;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        raplaReader = new RaplaReader(WEEK_MONDAY_DATE, WEEK_MONDAY_DATE.plusDays(6), "http://localhost/rapla?key=fixture");
+        raplaReader.setTransport(new FixtureTransport());
+        raplaReader.setExtractionEngine(engine);
+    }
+
+    @Benchmark
+    public Object getAllLessonsOfWeek() throws Exception
+    {
+        return raplaReader.getAllLessonsOfWeekAsHtmlWithMondayDate(WEEK_MONDAY_DATE);
+    }
+}
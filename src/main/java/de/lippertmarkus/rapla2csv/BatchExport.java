@@ -0,0 +1,307 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Export of many rapla calendars in one run. All calendars share one transport and one pool of workers, so the number
+ * of concurrent requests to rapla is limited for the whole run and connections are reused across calendars.
+ */
+public class BatchExport
+{
+    /**
+     * Calendars to export
+     */
+    private List<Entry> entries;
+
+    /**
+     * Transport for requesting the rapla web pages of all calendars
+     */
+    private RaplaTransport transport;
+
+    /**
+     * Maximum number of weeks which are requested from rapla at the same time, across all calendars
+     */
+    private int parallelism;
+
+    /**
+     * Way of finding the lesson information in the rapla web pages
+     */
+    private ExtractionEngine extractionEngine = ExtractionEngine.DOM;
+
+    /**
+     * View of the requested rapla web pages
+     */
+    private CalendarView view = CalendarView.AUTO;
+
+    /**
+     * Selection of the lessons to extract
+     */
+    private LessonFilter filter = LessonFilter.ALL;
+
+    /**
+     * Receiver of the measurements of all calendars
+     */
+    private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+    /**
+     * Counter for exported lessons of all calendars
+     */
+    private AtomicInteger countLessons = new AtomicInteger();
+
+    /**
+     * Counter for skipped lessons of all calendars
+     */
+    private AtomicInteger countSkippedLessons = new AtomicInteger();
+
+    /**
+     * Counter for calendars which couldn't be exported
+     */
+    private AtomicInteger countFailedCalendars = new AtomicInteger();
+
+
+    /**
+     * Constructs a new batch export
+     *
+     * @param entries     calendars to export
+     * @param transport   transport shared by all calendars, isn't closed by the batch export
+     * @param parallelism maximum number of concurrent week requests of all calendars, at least 1
+     */
+    public BatchExport(List<Entry> entries, RaplaTransport transport, int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+
+        this.entries = entries;
+        this.transport = transport;
+        this.parallelism = parallelism;
+    }
+
+    public void setExtractionEngine(ExtractionEngine extractionEngine)
+    {
+        this.extractionEngine = extractionEngine;
+    }
+
+    public void setView(CalendarView view)
+    {
+        this.view = view;
+    }
+
+    public void setFilter(LessonFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    public void setMetrics(MetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads the calendars to export out of a manifest file. Every line contains link, begin and end of the time period
+     * and the CSV or iCalendar (.ics) file to export to, compressed with gzip for the extension .gz, separated by
+     * whitespace, e.g.
+     * "http://example.com/rapla?key=abc123 2016-01-01 2016-12-31 abc.csv". Empty lines and lines starting with # are
+     * ignored.
+     *
+     * @param manifest manifest file
+     * @return calendars of the manifest in file order
+     * @throws IOException if the file couldn't be read or a line is invalid
+     */
+    public static List<Entry> readManifest(Path manifest) throws IOException
+    {
+        List<Entry> entries = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest, LessonCsv.CHARSET)) {
+            String line;
+            int lineNumber = 0;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split("\\s+");
+
+                if (fields.length != 4)
+                    throw new IOException("Invalid line " + lineNumber + " in " + manifest
+                            + ": expected link, from, until and output file");
+
+                try {
+                    entries.add(new Entry(fields[0], LocalDate.parse(fields[1]), LocalDate.parse(fields[2]),
+                            fields[3]));
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid line " + lineNumber + " in " + manifest + ": " + e.getMessage());
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Exports all calendars to their CSV files. Several calendars are extracted at the same time, their week requests
+     * share the workers. A failing calendar doesn't stop the others, its partial CSV file is removed.
+     *
+     * @throws InterruptedException if the export was interrupted
+     */
+    public void run() throws InterruptedException
+    {
+        if (entries.isEmpty())
+            return;
+
+        ExecutorService weekExecutor = Executors.newFixedThreadPool(parallelism);
+        ExecutorService calendarExecutor = Executors.newFixedThreadPool(Math.min(parallelism, entries.size()));
+
+        try {
+            List<Future<?>> calendars = new ArrayList<>();
+
+            for (Entry entry : entries)
+                calendars.add(calendarExecutor.submit(() -> exportCalendar(entry, weekExecutor)));
+
+            for (Future<?> calendar : calendars)
+                calendar.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // exportCalendar handles all its failures
+        } finally {
+            calendarExecutor.shutdownNow();
+            weekExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Exports a single calendar to its CSV file
+     *
+     * @param entry        calendar to export
+     * @param weekExecutor workers for requesting and extracting the weeks
+     */
+    private void exportCalendar(Entry entry, ExecutorService weekExecutor)
+    {
+        Path outputFile = Paths.get(entry.outputFile);
+
+        try (OutputStream out = GzipFiles.newOutputStream(outputFile)) {
+            RaplaReader raplaReader = new RaplaReader(entry.dateFrom, entry.dateUntil, entry.link);
+            int exportedLessons;
+
+            raplaReader.setTransport(transport);
+            raplaReader.setExecutor(weekExecutor);
+            raplaReader.setParallelism(parallelism);
+            raplaReader.setExtractionEngine(extractionEngine);
+            raplaReader.setView(view);
+            raplaReader.setFilter(filter);
+            raplaReader.setMetrics(metrics);
+
+            // iCalendar needs all lessons for finding weekly series, CSV is written while extracting
+            if (Program.isIcsFileName(entry.outputFile)) {
+                IcsExporter exporter = new IcsExporter(raplaReader.getLessonsFromRapla());
+                exporter.write(out);
+                exportedLessons = exporter.getCountLessons();
+            } else {
+                try (CsvLessonWriter writer = new CsvLessonWriter(out)) {
+                    raplaReader.streamLessonsFromRapla(writer);
+                    exportedLessons = writer.getCountLessons();
+                }
+            }
+
+            countLessons.addAndGet(exportedLessons);
+            countSkippedLessons.addAndGet(raplaReader.getCountSkippedLessons());
+            metrics.count("rapla_calendars_exported_total", 1);
+            System.out.println("Export done: " + entry.outputFile + " (" + exportedLessons + " lessons)");
+        } catch (Exception e) {
+            countFailedCalendars.incrementAndGet();
+            metrics.count("rapla_calendars_failed_total", 1);
+            System.err.println("Export failed: " + entry.outputFile + ": " + e.getMessage());
+
+            try {
+                Files.deleteIfExists(outputFile);
+            } catch (IOException deleteException) {
+                // partial file stays, the error was already reported
+            }
+        }
+    }
+
+    public int getCountFailedCalendars()
+    {
+        return countFailedCalendars.get();
+    }
+
+    /**
+     * Gets information about the exported calendars and lessons of all calendars
+     *
+     * @return string with the information
+     */
+    public String getBatchInfo()
+    {
+        return (entries.size() - countFailedCalendars.get()) + " calendars exported, " + countFailedCalendars.get()
+                + " failed, " + countLessons.get() + " lessons extracted, " + countSkippedLessons.get()
+                + " lessons skipped, " + transport.getStatistics();
+    }
+
+    /**
+     * Calendar of a batch export
+     */
+    public static class Entry
+    {
+        /**
+         * Link to the rapla web calendar view
+         */
+        private final String link;
+
+        /**
+         * Begin of the extraction range
+         */
+        private final LocalDate dateFrom;
+
+        /**
+         * End of the extraction range
+         */
+        private final LocalDate dateUntil;
+
+        /**
+         * CSV file to export to
+         */
+        private final String outputFile;
+
+        public Entry(String link, LocalDate dateFrom, LocalDate dateUntil, String outputFile)
+        {
+            this.link = link;
+            this.dateFrom = dateFrom;
+            this.dateUntil = dateUntil;
+            this.outputFile = outputFile;
+        }
+
+        public String getLink()
+        {
+            return link;
+        }
+
+        public LocalDate getDateFrom()
+        {
+            return dateFrom;
+        }
+
+        public LocalDate getDateUntil()
+        {
+            return dateUntil;
+        }
+
+        public String getOutputFile()
+        {
+            return outputFile;
+        }
+    }
+}
@@ -0,0 +1,703 @@
+package de.lippertmarkus.rapla2csv;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP server answering requests like "GET /calendar?link=...&amp;from=2016-01-01&amp;until=2016-12-31" with the
+ * lessons of the rapla calendar as CSV, or as iCalendar with the additional parameter "format=ics". Extracted
+ * calendars are kept in a size-bounded cache and refreshed in the background, so polling calendar clients are
+ * answered without requesting rapla again. "GET /metrics" answers with the metrics of all extractions in the
+ * Prometheus text format. Only links to the allowed rapla hosts are extracted, so the server can't be used to send
+ * requests to other hosts.
+ */
+public class CalendarServer
+{
+    /**
+     * Logger for failed refreshes and requests
+     */
+    private static final Logger LOGGER = Logger.getLogger(CalendarServer.class.getName());
+
+    /**
+     * Longest time period which can be requested in years
+     */
+    private static final int MAX_PERIOD_YEARS = 5;
+
+    /**
+     * Number of threads answering the requests
+     */
+    private static final int REQUEST_THREADS = 16;
+
+    /**
+     * Maximum number of accepted requests waiting for a thread
+     */
+    private static final int MAX_QUEUED_REQUESTS = 256;
+
+    /**
+     * Underlying HTTP server
+     */
+    private HttpServer server;
+
+    /**
+     * Threads answering the requests
+     */
+    private ExecutorService requestExecutor;
+
+    /**
+     * Workers for requesting and extracting the weeks of all calendars
+     */
+    private ExecutorService weekExecutor;
+
+    /**
+     * Timer for refreshing the cached calendars
+     */
+    private ScheduledExecutorService refreshExecutor;
+
+    /**
+     * Transport for requesting the rapla web pages of all calendars
+     */
+    private RaplaTransport transport;
+
+    /**
+     * Maximum number of weeks which are requested from rapla at the same time
+     */
+    private int parallelism;
+
+    /**
+     * Way of finding the lesson information in the rapla web pages
+     */
+    private ExtractionEngine extractionEngine = ExtractionEngine.DOM;
+
+    /**
+     * View of the requested rapla web pages
+     */
+    private CalendarView view = CalendarView.AUTO;
+
+    /**
+     * Maximum number of cached calendars
+     */
+    private int maxCachedCalendars = 100;
+
+    /**
+     * Time between two refreshes of a cached calendar in minutes
+     */
+    private long refreshInterval = 15;
+
+    /**
+     * Hosts of the rapla links which may be requested, in lower case
+     */
+    private Set<String> allowedHosts = new HashSet<>();
+
+    /**
+     * Cached calendars in order of their last request, the least recently requested one is removed first
+     */
+    private final Map<CalendarKey, CompletableFuture<CachedCalendar>> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Counter for requests answered from the cache
+     */
+    private AtomicInteger countCacheHits = new AtomicInteger();
+
+    /**
+     * Counter for requests which needed an extraction
+     */
+    private AtomicInteger countCacheMisses = new AtomicInteger();
+
+    /**
+     * Measurements of all extractions and requests
+     */
+    private InMemoryMetricsRegistry metrics = new InMemoryMetricsRegistry();
+
+
+    /**
+     * Constructs a new server
+     *
+     * @param address     address and port to listen on, e.g. the loopback address for local clients only
+     * @param transport   transport for requesting the rapla web pages, isn't closed by the server
+     * @param parallelism maximum number of weeks requested from rapla at the same time, at least 1
+     * @throws IOException if the port couldn't be bound
+     */
+    public CalendarServer(InetSocketAddress address, RaplaTransport transport, int parallelism) throws IOException
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+
+        this.transport = transport;
+        this.parallelism = parallelism;
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/calendar", this::handle);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public void setExtractionEngine(ExtractionEngine extractionEngine)
+    {
+        this.extractionEngine = extractionEngine;
+    }
+
+    public void setView(CalendarView view)
+    {
+        this.view = view;
+    }
+
+    /**
+     * Sets the registry for the measurements, e.g. to share it with the transport
+     *
+     * @param metrics registry to use
+     */
+    public void setMetrics(InMemoryMetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the maximum number of cached calendars
+     *
+     * @param maxCachedCalendars number of calendars, at least 1
+     */
+    public void setMaxCachedCalendars(int maxCachedCalendars)
+    {
+        if (maxCachedCalendars < 1)
+            throw new IllegalArgumentException("Cache size must be at least 1");
+
+        this.maxCachedCalendars = maxCachedCalendars;
+    }
+
+    /**
+     * Sets the time between two refreshes of a cached calendar
+     *
+     * @param refreshInterval time in minutes, at least 1
+     */
+    public void setRefreshInterval(long refreshInterval)
+    {
+        if (refreshInterval < 1)
+            throw new IllegalArgumentException("Refresh interval must be at least 1 minute");
+
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Sets the hosts of the rapla links which may be requested, links to other hosts are refused
+     *
+     * @param allowedHosts host names, ignoring case
+     */
+    public void setAllowedHosts(Collection<String> allowedHosts)
+    {
+        this.allowedHosts = new HashSet<>();
+
+        for (String host : allowedHosts)
+            this.allowedHosts.add(host.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Starts answering requests and refreshing cached calendars
+     */
+    public void start()
+    {
+        // if all threads are busy and the queue is full, the accepting thread answers the request itself, so no further
+        // connections are accepted until the requests are answered
+        requestExecutor = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS), new ThreadPoolExecutor.CallerRunsPolicy());
+        weekExecutor = Executors.newFixedThreadPool(parallelism);
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+        refreshExecutor.scheduleWithFixedDelay(this::refreshCachedCalendars, refreshInterval, refreshInterval,
+                TimeUnit.MINUTES);
+
+        server.setExecutor(requestExecutor);
+        server.start();
+    }
+
+    /**
+     * Stops the server
+     */
+    public void stop()
+    {
+        server.stop(0);
+
+        if (requestExecutor != null) {
+            refreshExecutor.shutdownNow();
+            requestExecutor.shutdownNow();
+            weekExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the port the server listens on
+     *
+     * @return the port
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Answers a request with the CSV of the requested calendar
+     *
+     * @param exchange the request and response
+     * @throws IOException if the response couldn't be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                respondError(exchange, 405, "Only GET and HEAD are supported");
+                return;
+            }
+
+            CalendarKey key;
+            boolean ics;
+
+            try {
+                key = parseCalendarKey(exchange.getRequestURI());
+                ics = isIcsRequested(exchange.getRequestURI());
+            } catch (IllegalArgumentException e) {
+                respondError(exchange, 400, e.getMessage());
+                return;
+            }
+
+            if (!isAllowedLink(key.link)) {
+                respondError(exchange, 403, "Only links to the rapla hosts " + allowedHosts + " are allowed");
+                return;
+            }
+
+            CachedCalendar calendar;
+
+            try {
+                calendar = getCalendar(key);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof MalformedURLException)
+                    respondError(exchange, 400, "Invalid rapla link: " + e.getCause().getMessage());
+                else
+                    respondError(exchange, 502, "Extraction from rapla failed: " + e.getCause().getMessage());
+                return;
+            }
+
+            respondCalendar(exchange, calendar, ics);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respondError(exchange, 503, "Server is stopping");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Request " + exchange.getRequestURI() + " failed", e);
+            respondError(exchange, 500, "Internal server error");
+        }
+    }
+
+    /**
+     * Answers a request with the metrics in the Prometheus text format
+     *
+     * @param exchange the request and response
+     * @throws IOException if the response couldn't be sent
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException
+    {
+        if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+            respondError(exchange, 405, "Only GET and HEAD are supported");
+            return;
+        }
+
+        respond(exchange, 200, "text/plain; version=0.0.4; charset=UTF-8",
+                metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Determines the requested calendar out of the GET-parameters link, from and until
+     *
+     * @param requestUri link of the request
+     * @return the requested calendar
+     * @throws IllegalArgumentException if a parameter is missing or invalid
+     */
+    private CalendarKey parseCalendarKey(URI requestUri)
+    {
+        Map<String, String> parameters = new HashMap<>();
+
+        for (NameValuePair parameter : URLEncodedUtils.parse(requestUri, "UTF-8"))
+            parameters.put(parameter.getName(), parameter.getValue());
+
+        if (!parameters.containsKey("link") || !parameters.containsKey("from") || !parameters.containsKey("until"))
+            throw new IllegalArgumentException("Parameters link, from and until are required");
+
+        LocalDate from, until;
+
+        try {
+            from = LocalDate.parse(parameters.get("from"));
+            until = LocalDate.parse(parameters.get("until"));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Dates must be in format yyyy-mm-dd");
+        }
+
+        if (until.isBefore(from) || until.isAfter(from.plusYears(MAX_PERIOD_YEARS)))
+            throw new IllegalArgumentException("Time period must be between 0 and " + MAX_PERIOD_YEARS + " years");
+
+        String link = parameters.get("link");
+        if (!link.startsWith("http://") && !link.startsWith("https://"))
+            throw new IllegalArgumentException("Link must be a HTTP link");
+
+        return new CalendarKey(link, from, until);
+    }
+
+    /**
+     * Checks whether a rapla link points to one of the allowed hosts
+     *
+     * @param link the rapla link
+     * @return true if the host is allowed, false if it isn't or the link is invalid
+     */
+    private boolean isAllowedLink(String link)
+    {
+        try {
+            String host = new URI(link).getHost();
+
+            return host != null && allowedHosts.contains(host.toLowerCase(Locale.ROOT));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Determines the requested format out of the GET-parameter format
+     *
+     * @param requestUri link of the request
+     * @return true for iCalendar, false for CSV
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    private boolean isIcsRequested(URI requestUri)
+    {
+        for (NameValuePair parameter : URLEncodedUtils.parse(requestUri, "UTF-8")) {
+            if (!parameter.getName().equals("format"))
+                continue;
+
+            if (parameter.getValue().equals("ics"))
+                return true;
+            if (!parameter.getValue().equals("csv"))
+                throw new IllegalArgumentException("Unsupported format '" + parameter.getValue() + "'");
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets a calendar out of the cache or extracts it, if it isn't cached yet. Concurrent requests for the same
+     * calendar wait for the same extraction.
+     *
+     * @param key requested calendar
+     * @return the calendar
+     * @throws ExecutionException   if the calendar couldn't be extracted
+     * @throws InterruptedException if waiting for the extraction was interrupted
+     */
+    private CachedCalendar getCalendar(CalendarKey key) throws ExecutionException, InterruptedException
+    {
+        CompletableFuture<CachedCalendar> calendar;
+        boolean extract = false;
+
+        synchronized (cache) {
+            calendar = cache.get(key);
+
+            if (calendar == null) {
+                calendar = new CompletableFuture<>();
+                cache.put(key, calendar);
+                removeLeastRecentlyRequested();
+                extract = true;
+            }
+        }
+
+        if (!extract) {
+            countCacheHits.incrementAndGet();
+            metrics.count("rapla_server_cache_hits_total", 1);
+            return calendar.get();
+        }
+
+        countCacheMisses.incrementAndGet();
+        metrics.count("rapla_server_cache_misses_total", 1);
+
+        try {
+            calendar.complete(extractCalendar(key));
+        } catch (Exception e) {
+            // don't cache failures, the next request tries again
+            synchronized (cache) {
+                cache.remove(key, calendar);
+            }
+
+            calendar.completeExceptionally(e);
+        }
+
+        return calendar.get();
+    }
+
+    /**
+     * Removes the least recently requested calendars while the cache is too big
+     */
+    private void removeLeastRecentlyRequested()
+    {
+        while (cache.size() > maxCachedCalendars)
+            cache.remove(cache.keySet().iterator().next());
+    }
+
+    /**
+     * Extracts a calendar from rapla and creates its CSV content
+     *
+     * @param key calendar to extract
+     * @return the extracted calendar
+     * @throws Exception if the calendar couldn't be extracted
+     */
+    private CachedCalendar extractCalendar(CalendarKey key) throws Exception
+    {
+        RaplaReader raplaReader = new RaplaReader(key.from, key.until, key.link);
+
+        raplaReader.setTransport(transport);
+        raplaReader.setExecutor(weekExecutor);
+        raplaReader.setParallelism(parallelism);
+        raplaReader.setExtractionEngine(extractionEngine);
+        raplaReader.setView(view);
+        raplaReader.setMetrics(metrics);
+
+        LessonStore lessons = raplaReader.getLessonsFromRapla();
+        lessons.trimToSize();
+
+        return new CachedCalendar(lessons);
+    }
+
+    /**
+     * Extracts all cached calendars again. If a calendar couldn't be extracted, the previous version stays cached.
+     */
+    private void refreshCachedCalendars()
+    {
+        List<CalendarKey> keys;
+
+        synchronized (cache) {
+            keys = new ArrayList<>(cache.keySet());
+        }
+
+        for (CalendarKey key : keys) {
+            try {
+                CachedCalendar calendar = extractCalendar(key);
+
+                synchronized (cache) {
+                    // set the entry directly, as put and replace would count as request of the calendar
+                    for (Map.Entry<CalendarKey, CompletableFuture<CachedCalendar>> entry : cache.entrySet()) {
+                        if (entry.getKey().equals(key)) {
+                            entry.setValue(CompletableFuture.completedFuture(calendar));
+                            break;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.warning("Refresh failed: " + key.link + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends the CSV or iCalendar content of a calendar or only status 304 if the client knows the current version
+     *
+     * @param exchange the request and response
+     * @param calendar the requested calendar
+     * @param ics      true for iCalendar, false for CSV
+     * @throws IOException if the response couldn't be sent
+     */
+    private void respondCalendar(HttpExchange exchange, CachedCalendar calendar, boolean ics) throws IOException
+    {
+        String eTag = "\"" + calendar.version + (ics ? "-ics" : "-csv") + "\"";
+
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.getResponseHeaders().set("Cache-Control", "max-age=" + TimeUnit.MINUTES.toSeconds(refreshInterval));
+
+        if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        if (ics)
+            respond(exchange, 200, "text/calendar; charset=UTF-8", calendar.getIcs());
+        else
+            respond(exchange, 200, "text/csv; charset=UTF-8", calendar.csv);
+    }
+
+    /**
+     * Sends an error message
+     *
+     * @param exchange   the request and response
+     * @param statusCode HTTP status code
+     * @param message    error message
+     * @throws IOException if the response couldn't be sent
+     */
+    private void respondError(HttpExchange exchange, int statusCode, String message) throws IOException
+    {
+        respond(exchange, statusCode, "text/plain; charset=UTF-8", message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a response
+     *
+     * @param exchange    the request and response
+     * @param statusCode  HTTP status code
+     * @param contentType content type of the body
+     * @param body        content of the response
+     * @throws IOException if the response couldn't be sent
+     */
+    private void respond(HttpExchange exchange, int statusCode, String contentType, byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+            exchange.sendResponseHeaders(statusCode, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.sendResponseHeaders(statusCode, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Gets information about the cached calendars and the requests
+     *
+     * @return string with the information
+     */
+    public String getStatistics()
+    {
+        int cachedCalendars;
+
+        synchronized (cache) {
+            cachedCalendars = cache.size();
+        }
+
+        return cachedCalendars + " calendars cached, " + countCacheHits.get() + " hits, " + countCacheMisses.get()
+                + " misses, " + transport.getStatistics();
+    }
+
+    /**
+     * Link and time period of a requested calendar
+     */
+    private static class CalendarKey
+    {
+        private final String link;
+        private final LocalDate from;
+        private final LocalDate until;
+
+        private CalendarKey(String link, LocalDate from, LocalDate until)
+        {
+            this.link = link;
+            this.from = from;
+            this.until = until;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof CalendarKey))
+                return false;
+
+            CalendarKey other = (CalendarKey) o;
+            return link.equals(other.link) && from.equals(other.from) && until.equals(other.until);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(link, from, until);
+        }
+    }
+
+    /**
+     * Extracted calendar ready to be sent
+     */
+    private static class CachedCalendar
+    {
+        /**
+         * Extracted lessons of the calendar
+         */
+        private final List<Lesson> lessons;
+
+        /**
+         * CSV content of the calendar, created once for all requests
+         */
+        private final byte[] csv;
+
+        /**
+         * iCalendar content of the calendar, created on the first request
+         */
+        private volatile byte[] ics;
+
+        /**
+         * Version of the content for entity tags, changes when the lessons change
+         */
+        private final String version;
+
+        private CachedCalendar(List<Lesson> lessons) throws IOException
+        {
+            ByteArrayOutputStream csvContent = new ByteArrayOutputStream();
+
+            try (CsvLessonWriter writer = new CsvLessonWriter(csvContent)) {
+                for (Lesson lesson : lessons)
+                    writer.accept(lesson);
+            }
+
+            this.lessons = lessons;
+            this.csv = csvContent.toByteArray();
+            this.version = Integer.toHexString(Arrays.hashCode(csv));
+        }
+
+        /**
+         * Gets the iCalendar content, which is created on the first call as many clients only request CSV
+         *
+         * @return iCalendar content of the calendar
+         * @throws IOException if the content couldn't be created
+         */
+        private byte[] getIcs() throws IOException
+        {
+            if (ics == null) {
+                ByteArrayOutputStream icsContent = new ByteArrayOutputStream();
+                new IcsExporter(lessons).write(icsContent);
+                ics = icsContent.toByteArray();
+            }
+
+            return ics;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+
+/**
+ * Views of a rapla calendar which can be requested as pages. Larger views need fewer requests for the same time
+ * period, but not every rapla server provides them.
+ */
+public enum CalendarView
+{
+    /**
+     * Uses the month view if the server answers with a month page, else the week view
+     */
+    AUTO,
+
+    /**
+     * One page per week, provided by every rapla server. The date of a lesson is determined by its weekday.
+     */
+    WEEK,
+
+    /**
+     * One page per month with a cell per day. The date of a lesson is determined by the day number of its cell.
+     */
+    MONTH;
+
+    /**
+     * GET-parameter selecting the view of the page
+     */
+    static final String PARAMETER = "view";
+
+    /**
+     * CSS class of the element with the day number in a cell of the month view
+     */
+    static final String DAY_NUMBER_CLASS = "month_number";
+
+    /**
+     * Attribute which is added to the tooltips of a month page, containing the day number of their cell
+     */
+    static final String DAY_ATTRIBUTE = "data-day";
+
+
+    /**
+     * Gets the first day of the page containing a date
+     *
+     * @param date date on the page
+     * @return monday for weeks, first day of the month for months
+     */
+    LocalDate getPageStart(LocalDate date)
+    {
+        return this == MONTH ? date.withDayOfMonth(1) : date.with(DayOfWeek.MONDAY);
+    }
+
+    /**
+     * Gets the first day of the following page
+     *
+     * @param pageStart first day of a page
+     * @return first day of the next page
+     */
+    LocalDate getNextPageStart(LocalDate pageStart)
+    {
+        return this == MONTH ? pageStart.plusMonths(1) : pageStart.plusWeeks(1);
+    }
+}
@@ -0,0 +1,272 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of the pages completed by an extraction, so an interrupted extraction of a long time period resumes after
+ * the last completed page instead of requesting all pages again. The lessons of every page are appended and written
+ * to disk before they're passed on. The journal file is named by a hash of link, time period, view and filter, so only
+ * a restarted extraction with the same settings uses it.
+ * <p>
+ * Format (UTF-8 lines): the settings of the extraction, then for every page a line "page date view skipped", the CSV
+ * rows of its lessons and a line "end date". Pages without end line were interrupted while writing and are dropped.
+ */
+public class CheckpointJournal
+{
+    /**
+     * File extension of the journal files
+     */
+    private static final String EXTENSION = ".journal";
+
+    /**
+     * Journal file
+     */
+    private Path file;
+
+    /**
+     * Completed pages of a previous run by first day, removed when taken
+     */
+    private Map<LocalDate, Page> completedPages = new HashMap<>();
+
+    /**
+     * View of the completed pages, null if there are none
+     */
+    private CalendarView view;
+
+
+    private CheckpointJournal(Path file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Opens the journal of an extraction and reads the pages completed by previous runs. The directory is created if
+     * it doesn't exist.
+     *
+     * @param directory directory of the journal files
+     * @param raplaLink link to the calendar
+     * @param from      begin of the time period
+     * @param until     end of the time period
+     * @param view      requested view of the pages
+     * @param filter    selection of the extracted lessons
+     * @return the journal
+     * @throws IOException if the journal couldn't be read
+     */
+    public static CheckpointJournal open(Path directory, String raplaLink, LocalDate from, LocalDate until,
+                                         CalendarView view, LessonFilter filter) throws IOException
+    {
+        String settings = raplaLink + " " + from + " " + until + " " + view + " " + filter;
+        CheckpointJournal journal = new CheckpointJournal(
+                Files.createDirectories(directory).resolve(getHash(settings) + EXTENSION));
+
+        if (Files.exists(journal.file))
+            journal.load(settings);
+        else
+            Files.write(journal.file, (settings + "\n").getBytes(StandardCharsets.UTF_8));
+
+        return journal;
+    }
+
+    /**
+     * Determines the name of a journal file out of the settings of the extraction
+     *
+     * @param settings settings of the extraction
+     * @return hex encoded hash of the settings
+     */
+    private static String getHash(String settings)
+    {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+
+            for (byte b : hash)
+                key.append(String.format("%02x", b));
+
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the completed pages out of the journal file and cuts off an interrupted page at its end, so following
+     * pages are appended after the last completed one
+     *
+     * @param settings settings of the extraction, which have to match the first line
+     * @throws IOException if the file couldn't be read or belongs to another extraction
+     */
+    private void load(String settings) throws IOException
+    {
+        byte[] content = Files.readAllBytes(file);
+        int lineStart = 0;
+        int completedLength = 0;
+        Page page = null;
+        LocalDate pageStart = null;
+
+        for (int lineEnd; (lineEnd = indexOf(content, '\n', lineStart)) >= 0; lineStart = lineEnd + 1) {
+            String line = new String(content, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+
+            try {
+                if (lineStart == 0) {
+                    if (!line.equals(settings))
+                        throw new IOException("Checkpoint journal " + file + " belongs to another extraction");
+
+                    completedLength = lineEnd + 1;
+                } else if (line.startsWith("page ")) {
+                    String[] fields = line.split(" ");
+                    pageStart = LocalDate.parse(fields[1]);
+                    page = new Page(CalendarView.valueOf(fields[2]), Integer.parseInt(fields[3]));
+                } else if (line.startsWith("end ") && page != null && line.equals("end " + pageStart)) {
+                    completedPages.put(pageStart, page);
+                    view = page.view;
+                    completedLength = lineEnd + 1;
+                    page = null;
+                } else if (page != null) {
+                    page.lessons.add(LessonCsv.parseRow(line));
+                }
+            } catch (RuntimeException e) {
+                // a line damaged by the interruption, the page is dropped
+                page = null;
+            }
+        }
+
+        // the settings line is missing if the first run was interrupted right after creating the file
+        if (completedLength == 0)
+            Files.write(file, (settings + "\n").getBytes(StandardCharsets.UTF_8));
+        else if (completedLength < content.length)
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(completedLength);
+            }
+    }
+
+    private static int indexOf(byte[] content, char c, int fromIndex)
+    {
+        for (int i = fromIndex; i < content.length; i++)
+            if (content[i] == c)
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Appends a completed page to the journal and writes it to disk
+     *
+     * @param pageStart      first day of the page
+     * @param view           view of the page
+     * @param lessons        extracted lessons of the page
+     * @param skippedLessons number of lessons of the page which couldn't be parsed
+     * @throws IOException if the journal couldn't be written
+     */
+    public void append(LocalDate pageStart, CalendarView view, List<Lesson> lessons, int skippedLessons)
+            throws IOException
+    {
+        StringBuilder record = new StringBuilder();
+        record.append("page ").append(pageStart).append(' ').append(view.name()).append(' ')
+                .append(skippedLessons).append('\n');
+
+        for (Lesson lesson : lessons)
+            record.append(LessonCsv.toRow(lesson)).append('\n');
+
+        record.append("end ").append(pageStart).append('\n');
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(record.toString().getBytes(StandardCharsets.UTF_8));
+
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Takes a page completed by a previous run out of the journal
+     *
+     * @param pageStart first day of the page
+     * @return the page or null if it wasn't completed
+     */
+    public Page takeCompletedPage(LocalDate pageStart)
+    {
+        return completedPages.remove(pageStart);
+    }
+
+    /**
+     * Deletes the journal after the export was completed
+     *
+     * @throws IOException if the file couldn't be deleted
+     */
+    public void delete() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Gets the view of the pages completed by previous runs
+     *
+     * @return week or month view, null if no page was completed
+     */
+    public CalendarView getView()
+    {
+        return view;
+    }
+
+    public int getCountCompletedPages()
+    {
+        return completedPages.size();
+    }
+
+    public Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Lessons and skip count of a page completed by a previous run
+     */
+    public static class Page
+    {
+        /**
+         * View the page was requested in
+         */
+        private final CalendarView view;
+
+        /**
+         * Lessons of the page within the date range
+         */
+        private final List<Lesson> lessons = new ArrayList<>();
+
+        /**
+         * Number of lessons of the page which couldn't be parsed
+         */
+        private final int skippedLessons;
+
+        private Page(CalendarView view, int skippedLessons)
+        {
+            this.view = view;
+            this.skippedLessons = skippedLessons;
+        }
+
+        public List<Lesson> getLessons()
+        {
+            return lessons;
+        }
+
+        public int getSkippedLessons()
+        {
+            return skippedLessons;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Analysis of double-booked rooms and professors, e.g. over the merged calendars of a whole campus. The lessons are
+ * indexed by room and by professor with LessonIntervalIndex, so the conflicts and the occupation at a time are found
+ * without comparing every lesson with every other one.
+ */
+public class ConflictReport
+{
+    /**
+     * Header of the CSV report
+     */
+    public static final String HEADER = "Type,Resource,Subject 1,Start Date 1,Start Time 1,End Time 1,"
+            + "Subject 2,Start Date 2,Start Time 2,End Time 2";
+
+    /**
+     * Lessons by room
+     */
+    private LessonIntervalIndex rooms;
+
+    /**
+     * Lessons by professor
+     */
+    private LessonIntervalIndex professors;
+
+    /**
+     * Overlapping lessons in the same room
+     */
+    private List<LessonIntervalIndex.Overlap> roomConflicts;
+
+    /**
+     * Overlapping lessons of the same professor
+     */
+    private List<LessonIntervalIndex.Overlap> professorConflicts;
+
+
+    /**
+     * Indexes the lessons and finds the conflicts
+     *
+     * @param lessons lessons of one or several calendars, lessons contained in several calendars should be kept once
+     */
+    public ConflictReport(List<Lesson> lessons)
+    {
+        rooms = new LessonIntervalIndex(lessons, Lesson::getRoom);
+        professors = new LessonIntervalIndex(lessons, Lesson::getProfessor);
+        roomConflicts = rooms.findOverlaps();
+        professorConflicts = professors.findOverlaps();
+    }
+
+    /**
+     * Writes all conflicts as CSV rows, first those of the rooms, then those of the professors
+     *
+     * @param out stream to write the CSV content to
+     * @throws IOException if the report couldn't be written
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, LessonCsv.CHARSET));
+
+        writer.write(HEADER);
+        writer.write(LessonCsv.LINE_SEPARATOR);
+        writeConflicts(writer, "Room", roomConflicts);
+        writeConflicts(writer, "Professor", professorConflicts);
+        writer.flush();
+    }
+
+    private static void writeConflicts(Writer writer, String type, List<LessonIntervalIndex.Overlap> conflicts)
+            throws IOException
+    {
+        for (LessonIntervalIndex.Overlap conflict : conflicts) {
+            writer.write(type + "," + LessonCsv.quote(conflict.getResource()) + ","
+                    + toFields(conflict.getFirst()) + "," + toFields(conflict.getSecond()));
+            writer.write(LessonCsv.LINE_SEPARATOR);
+        }
+    }
+
+    private static String toFields(Lesson lesson)
+    {
+        return LessonCsv.quote(lesson.getTitle()) + "," + lesson.getStartDate() + "," + lesson.getStartTime() + ","
+                + lesson.getEndTime();
+    }
+
+    /**
+     * Gets the lessons taking place at a time in every room
+     *
+     * @param time the time
+     * @return lessons by room, only rooms in use
+     */
+    public Map<String, List<Lesson>> getRoomsAt(LocalDateTime time)
+    {
+        return getLessonsAt(rooms, time);
+    }
+
+    /**
+     * Gets the lessons taking place at a time of every professor
+     *
+     * @param time the time
+     * @return lessons by professor, only professors with a lesson
+     */
+    public Map<String, List<Lesson>> getProfessorsAt(LocalDateTime time)
+    {
+        return getLessonsAt(professors, time);
+    }
+
+    private static Map<String, List<Lesson>> getLessonsAt(LessonIntervalIndex index, LocalDateTime time)
+    {
+        Map<String, List<Lesson>> lessonsByResource = new LinkedHashMap<>();
+
+        for (String resource : index.getResources()) {
+            List<Lesson> lessons = index.getLessonsAt(resource, time);
+
+            if (!lessons.isEmpty())
+                lessonsByResource.put(resource, lessons);
+        }
+
+        return lessonsByResource;
+    }
+
+    public List<LessonIntervalIndex.Overlap> getRoomConflicts()
+    {
+        return roomConflicts;
+    }
+
+    public List<LessonIntervalIndex.Overlap> getProfessorConflicts()
+    {
+        return professorConflicts;
+    }
+
+    /**
+     * Gets statistics about the conflicts as string
+     *
+     * @return number of conflicts and of rooms and professors involved
+     */
+    public String getConflictInfo()
+    {
+        return roomConflicts.size() + " room conflicts (" + countResources(roomConflicts) + " of "
+                + rooms.getResources().size() + " rooms), " + professorConflicts.size() + " professor conflicts ("
+                + countResources(professorConflicts) + " of " + professors.getResources().size() + " professors)";
+    }
+
+    private static long countResources(List<LessonIntervalIndex.Overlap> conflicts)
+    {
+        return conflicts.stream().map(LessonIntervalIndex.Overlap::getResource).distinct().count();
+    }
+}
@@ -0,0 +1,71 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * Reads the lessons of a CSV file written by CsvLessonWriter one row at a time, so files larger than the memory can
+ * be processed
+ */
+public class CsvLessonReader implements Closeable
+{
+    /**
+     * File which is read, for error messages
+     */
+    private Path file;
+
+    /**
+     * Reader for the CSV content
+     */
+    private BufferedReader reader;
+
+
+    /**
+     * Opens a CSV file and skips the header
+     *
+     * @param file CSV file with header, may be compressed with gzip
+     * @throws IOException if the file couldn't be opened
+     */
+    public CsvLessonReader(Path file) throws IOException
+    {
+        this.file = file;
+        reader = new BufferedReader(new InputStreamReader(GzipFiles.newInputStream(file), LessonCsv.CHARSET));
+
+        try {
+            reader.readLine(); // skip header
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the next lesson
+     *
+     * @return the lesson or null at the end of the file
+     * @throws IOException if the file couldn't be read or contains an invalid row
+     */
+    public Lesson read() throws IOException
+    {
+        String row;
+
+        do {
+            row = reader.readLine();
+
+            if (row == null)
+                return null;
+        } while (row.isEmpty());
+
+        try {
+            return LessonCsv.parseRow(row);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid row in " + file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
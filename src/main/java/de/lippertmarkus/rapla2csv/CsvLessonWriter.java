@@ -0,0 +1,58 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.*;
+
+/**
+ * Writes lessons as CSV rows for calendars like Google calendar or Outlook, one row at a time
+ */
+public class CsvLessonWriter implements LessonSink, Closeable
+{
+    /**
+     * Writer for the CSV content
+     */
+    private Writer writer;
+
+    /**
+     * Counter for written lessons
+     */
+    private int countLessons = 0;
+
+
+    /**
+     * Constructs a new CSV writer and writes the header
+     *
+     * @param out stream to write the CSV content to
+     * @throws IOException if the header couldn't be written
+     */
+    public CsvLessonWriter(OutputStream out) throws IOException
+    {
+        writer = new BufferedWriter(new OutputStreamWriter(out, LessonCsv.CHARSET));
+        writer.write(LessonCsv.HEADER);
+        writer.write(LessonCsv.LINE_SEPARATOR);
+    }
+
+    @Override
+    public void accept(Lesson lesson) throws IOException
+    {
+        writer.write(LessonCsv.toRow(lesson));
+        writer.write(LessonCsv.LINE_SEPARATOR);
+        countLessons++;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    public int getCountLessons()
+    {
+        return countLessons;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        writer.close();
+    }
+}
@@ -0,0 +1,406 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport which stores the requested rapla pages on disk and answers following requests of the same page out of
+ * the cache. Expired pages are revalidated with a conditional request, so only modified pages are downloaded again.
+ * The cache is limited in size, least recently used pages are removed first. The views detected for the calendars are
+ * kept as well, so following extractions don't need to detect them again.
+ */
+public class DiskCacheTransport implements RaplaTransport
+{
+    /**
+     * File extension of the cached page contents
+     */
+    private static final String BODY_EXTENSION = ".html";
+
+    /**
+     * File extension of the cached page metadata
+     */
+    private static final String META_EXTENSION = ".properties";
+
+    /**
+     * File with the detected views of the calendars, every entry contains the view and the time it was detected
+     */
+    private static final String VIEWS_FILE = "views.properties";
+
+    /**
+     * Transport for requesting pages which aren't cached or expired
+     */
+    private RaplaTransport delegate;
+
+    /**
+     * Directory to store the pages in
+     */
+    private Path cacheDirectory;
+
+    /**
+     * Time a page of a current or future week or month is used without revalidation
+     */
+    private Duration timeToLive = Duration.ofHours(1);
+
+    /**
+     * Time a page of a past week or month is used without revalidation, as past weeks hardly ever change. Detected
+     * views are kept as long, so a server providing the month view later is noticed.
+     */
+    private Duration pastWeekTimeToLive = Duration.ofDays(30);
+
+    /**
+     * Maximum size of all cached pages in bytes
+     */
+    private long maxSize = 100L * 1024 * 1024;
+
+    /**
+     * Current size of all cached pages in bytes
+     */
+    private AtomicLong size = new AtomicLong();
+
+    /**
+     * Counter for pages answered out of the cache without request
+     */
+    private AtomicInteger countHits = new AtomicInteger();
+
+    /**
+     * Counter for pages answered out of the cache after the server confirmed they are still valid
+     */
+    private AtomicInteger countRevalidations = new AtomicInteger();
+
+    /**
+     * Counter for pages which had to be downloaded
+     */
+    private AtomicInteger countMisses = new AtomicInteger();
+
+
+    /**
+     * Constructs a new cache in the given directory, which is created if it doesn't exist
+     *
+     * @param delegate       transport for requesting pages which aren't cached
+     * @param cacheDirectory directory to store the pages in
+     * @throws IOException if the directory couldn't be created or read
+     */
+    public DiskCacheTransport(RaplaTransport delegate, Path cacheDirectory) throws IOException
+    {
+        this.delegate = delegate;
+        this.cacheDirectory = Files.createDirectories(cacheDirectory);
+
+        // determine size of pages cached by previous runs
+        try (DirectoryStream<Path> bodies = Files.newDirectoryStream(cacheDirectory, "*" + BODY_EXTENSION)) {
+            for (Path body : bodies)
+                size.addAndGet(Files.size(body));
+        }
+    }
+
+    public void setTimeToLive(Duration timeToLive)
+    {
+        this.timeToLive = timeToLive;
+    }
+
+    public void setPastWeekTimeToLive(Duration pastWeekTimeToLive)
+    {
+        this.pastWeekTimeToLive = pastWeekTimeToLive;
+    }
+
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public RaplaResponse fetch(URI uri) throws IOException
+    {
+        String key = getCacheKey(uri);
+        Path bodyFile = cacheDirectory.resolve(key + BODY_EXTENSION);
+        Path metaFile = cacheDirectory.resolve(key + META_EXTENSION);
+        Properties meta = readProperties(metaFile);
+
+        if (meta != null && Files.exists(bodyFile)) {
+            long fetched = Long.parseLong(meta.getProperty("fetched", "0"));
+
+            if (System.currentTimeMillis() - fetched <= getTimeToLive(uri).toMillis()) {
+                RaplaResponse cached = load(uri, meta, bodyFile);
+
+                if (cached != null) {
+                    countHits.incrementAndGet();
+                    return cached;
+                }
+            } else {
+                // expired, so ask the server if the cached page is still valid
+                RaplaResponse response = delegate.fetchIfModified(uri, meta.getProperty("etag"),
+                        meta.getProperty("lastModified"));
+
+                if (!response.isNotModified()) {
+                    countMisses.incrementAndGet();
+                    return store(response, bodyFile, metaFile);
+                }
+
+                RaplaResponse cached = load(uri, meta, bodyFile);
+
+                if (cached != null) {
+                    countRevalidations.incrementAndGet();
+                    meta.setProperty("fetched", Long.toString(System.currentTimeMillis()));
+                    writeProperties(meta, metaFile);
+
+                    return cached;
+                }
+            }
+        }
+
+        // not cached or removed in the meantime, e.g. evicted by a concurrent request or another process
+        countMisses.incrementAndGet();
+        return store(delegate.fetch(uri), bodyFile, metaFile);
+    }
+
+    /**
+     * Determines the name of the cache files for a page out of its link
+     *
+     * @param uri link of the page
+     * @return hex encoded hash of the link
+     */
+    private String getCacheKey(URI uri)
+    {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+
+            for (byte b : hash)
+                key.append(String.format("%02x", b));
+
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public CalendarView getKnownView(URI raplaLink)
+    {
+        Properties views = readProperties(cacheDirectory.resolve(VIEWS_FILE));
+        String entry = views != null ? views.getProperty(raplaLink.toString()) : null;
+
+        if (entry == null)
+            return null;
+
+        try {
+            String[] fields = entry.split(" ");
+
+            if (System.currentTimeMillis() - Long.parseLong(fields[1]) > pastWeekTimeToLive.toMillis())
+                return null;
+
+            return CalendarView.valueOf(fields[0]);
+        } catch (RuntimeException e) {
+            // damaged entry, detect the view again
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void setKnownView(URI raplaLink, CalendarView view) throws IOException
+    {
+        Path viewsFile = cacheDirectory.resolve(VIEWS_FILE);
+        Properties views = readProperties(viewsFile);
+
+        if (views == null)
+            views = new Properties();
+
+        views.setProperty(raplaLink.toString(), view.name() + " " + System.currentTimeMillis());
+        writeProperties(views, viewsFile);
+    }
+
+    /**
+     * Determines how long a page is valid. Pages of weeks or months which are over are kept longer.
+     *
+     * @param uri link of the page with the date and view parameters
+     * @return time to live of the page
+     */
+    private Duration getTimeToLive(URI uri)
+    {
+        String day = null, month = null, year = null;
+        CalendarView view = CalendarView.WEEK;
+
+        for (NameValuePair param : new URIBuilder(uri).getQueryParams()) {
+            switch (param.getName()) {
+                case "day":
+                    day = param.getValue();
+                    break;
+                case "month":
+                    month = param.getValue();
+                    break;
+                case "year":
+                    year = param.getValue();
+                    break;
+                case CalendarView.PARAMETER:
+                    if ("month".equals(param.getValue()))
+                        view = CalendarView.MONTH;
+                    break;
+            }
+        }
+
+        try {
+            LocalDate pageDate = LocalDate.of(Integer.parseInt(year), Integer.parseInt(month), Integer.parseInt(day));
+
+            // a month page stays current until the whole month is over
+            if (view.getNextPageStart(view.getPageStart(pageDate)).isBefore(LocalDate.now()))
+                return pastWeekTimeToLive;
+        } catch (Exception e) {
+            // no valid date parameters, use default time to live
+        }
+
+        return timeToLive;
+    }
+
+    /**
+     * Reads the metadata of a cached page or the detected views
+     *
+     * @param file file with the properties
+     * @return properties or null if the file doesn't exist
+     */
+    private Properties readProperties(Path file)
+    {
+        Properties properties = new Properties();
+
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+
+        return properties;
+    }
+
+    /**
+     * Writes the metadata of a cached page or the detected views
+     *
+     * @param properties metadata of the page or detected views
+     * @param file       file to write the properties to
+     * @throws IOException if the file couldn't be written
+     */
+    private void writeProperties(Properties properties, Path file) throws IOException
+    {
+        Path tempFile = Files.createTempFile(cacheDirectory, "meta", ".tmp");
+
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            properties.store(out, null);
+        }
+
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a page out of the cache and marks it as recently used
+     *
+     * @param uri      link of the page
+     * @param meta     metadata of the page
+     * @param bodyFile file with the content of the page
+     * @return the cached page or null if it couldn't be read, e.g. as it was evicted in the meantime
+     */
+    private RaplaResponse load(URI uri, Properties meta, Path bodyFile)
+    {
+        try {
+            Files.setLastModifiedTime(bodyFile, FileTime.fromMillis(System.currentTimeMillis()));
+
+            return new RaplaResponse(uri, Files.readAllBytes(bodyFile), meta.getProperty("charset"),
+                    meta.getProperty("etag"), meta.getProperty("lastModified"));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a downloaded page in the cache and removes old pages if the cache is full
+     *
+     * @param response downloaded page
+     * @param bodyFile file to write the content of the page to
+     * @param metaFile file to write the metadata of the page to
+     * @return the downloaded page
+     * @throws IOException if the page couldn't be written
+     */
+    private RaplaResponse store(RaplaResponse response, Path bodyFile, Path metaFile) throws IOException
+    {
+        Properties meta = new Properties();
+        meta.setProperty("uri", response.getUri().toString());
+        meta.setProperty("fetched", Long.toString(System.currentTimeMillis()));
+
+        if (response.getCharset() != null)
+            meta.setProperty("charset", response.getCharset());
+        if (response.getETag() != null)
+            meta.setProperty("etag", response.getETag());
+        if (response.getLastModified() != null)
+            meta.setProperty("lastModified", response.getLastModified());
+
+        long oldSize = Files.exists(bodyFile) ? Files.size(bodyFile) : 0;
+
+        // write to a temporary file first, so concurrent readers never see half written pages
+        Path tempFile = Files.createTempFile(cacheDirectory, "body", ".tmp");
+        Files.write(tempFile, response.getBody());
+        Files.move(tempFile, bodyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeProperties(meta, metaFile);
+
+        if (size.addAndGet(response.getBody().length - oldSize) > maxSize)
+            evictLeastRecentlyUsed();
+
+        return response;
+    }
+
+    /**
+     * Removes the least recently used pages until the cache isn't larger than the maximum size
+     *
+     * @throws IOException if the cache directory couldn't be read
+     */
+    private synchronized void evictLeastRecentlyUsed() throws IOException
+    {
+        List<Path> bodies = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDirectory, "*" + BODY_EXTENSION)) {
+            stream.forEach(bodies::add);
+        }
+
+        Map<Path, FileTime> accessTimes = new HashMap<>();
+        for (Path body : bodies)
+            accessTimes.put(body, Files.getLastModifiedTime(body));
+
+        bodies.sort(Comparator.comparing(accessTimes::get));
+
+        for (Path body : bodies) {
+            if (size.get() <= maxSize)
+                break;
+
+            String fileName = body.getFileName().toString();
+            String key = fileName.substring(0, fileName.length() - BODY_EXTENSION.length());
+            long bodySize = Files.size(body);
+
+            Files.deleteIfExists(cacheDirectory.resolve(key + META_EXTENSION));
+            if (Files.deleteIfExists(body))
+                size.addAndGet(-bodySize);
+        }
+    }
+
+    @Override
+    public String getStatistics()
+    {
+        return "cache: " + countHits.get() + " hits, " + countRevalidations.get() + " revalidated, "
+                + countMisses.get() + " misses, " + delegate.getStatistics();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        delegate.close();
+    }
+}
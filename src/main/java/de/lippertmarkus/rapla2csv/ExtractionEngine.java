@@ -0,0 +1,17 @@
+package de.lippertmarkus.rapla2csv;
+
+/**
+ * Ways of finding the lesson information in a rapla page
+ */
+public enum ExtractionEngine
+{
+    /**
+     * Parses the whole page to a document tree and selects the tooltips
+     */
+    DOM,
+
+    /**
+     * Scans the page for tooltips and only parses the tooltips, see TooltipScanner
+     */
+    STREAMING
+}
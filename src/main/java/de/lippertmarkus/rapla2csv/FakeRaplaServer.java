@@ -0,0 +1,526 @@
+package de.lippertmarkus.rapla2csv;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.temporal.IsoFields;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for a rapla server, serving generated week pages in the same format as rapla and month pages for the
+ * GET-parameter "view=month". Every calendar (key or user and file) gets its own weekly schedule. Latency, error
+ * rate and number of lessons per day are configurable, so the extraction can be tested and load-tested without a
+ * real rapla server.
+ */
+public class FakeRaplaServer
+{
+    /**
+     * German weekday tokens as used by rapla
+     */
+    private static final String[] WEEKDAYS = {"Mo", "Di", "Mi", "Do", "Fr", "Sa", "So"};
+
+    /**
+     * Titles and professors of the generated lessons
+     */
+    private static final String[][] COURSES = {
+            {"Mathematik I", "Müller, Hans"},
+            {"Programmieren", "Schmidt, Eva"},
+            {"Theoretische Informatik", "Weber, Klaus"},
+            {"Betriebssysteme", "Wagner, Anna"},
+            {"Datenbanken", "Becker, Thomas"},
+            {"Englisch", "Hoffmann, Julia"},
+            {"Rechnerarchitekturen", "Schulz, Peter"},
+            {"Kommunikations- & Netztechnik", "Koch, Sabine"},
+    };
+
+    /**
+     * Begin of the time slots of the generated lessons
+     */
+    private static final LocalTime[] SLOTS = {
+            LocalTime.of(8, 15), LocalTime.of(10, 0), LocalTime.of(13, 0), LocalTime.of(14, 45), LocalTime.of(16, 30)
+    };
+
+    /**
+     * Underlying HTTP server
+     */
+    private HttpServer server;
+
+    /**
+     * Threads answering the requests
+     */
+    private ExecutorService executor;
+
+    /**
+     * Mean latency of a response in milliseconds
+     */
+    private int latency = 0;
+
+    /**
+     * Share of requests which are answered with an error, between 0 and 1
+     */
+    private double errorRate = 0;
+
+    /**
+     * Number of lessons per weekday
+     */
+    private int lessonsPerDay = 3;
+
+    /**
+     * Number of requests answered at the same time, more are throttled with status 429, 0 for unlimited
+     */
+    private int capacity = 0;
+
+    /**
+     * Whether month pages are served, otherwise week pages are served for month requests like older rapla servers do
+     */
+    private boolean monthView = true;
+
+    /**
+     * Number of requests which are currently answered
+     */
+    private AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Counter for all requests
+     */
+    private AtomicInteger countRequests = new AtomicInteger();
+
+    /**
+     * Counter for requests answered with an error
+     */
+    private AtomicInteger countErrors = new AtomicInteger();
+
+
+    /**
+     * Constructs a new server on the given port, use port 0 for any free port
+     *
+     * @param port port to listen on
+     * @throws IOException if the port couldn't be bound
+     */
+    public FakeRaplaServer(int port) throws IOException
+    {
+        // without, Nagle's algorithm delays the response bodies by up to 40 ms and distorts the measured latencies
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", this::handle);
+    }
+
+    public void setLatency(int latency)
+    {
+        this.latency = latency;
+    }
+
+    public void setErrorRate(double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    public void setLessonsPerDay(int lessonsPerDay)
+    {
+        this.lessonsPerDay = Math.min(lessonsPerDay, SLOTS.length);
+    }
+
+    public void setCapacity(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    public void setMonthView(boolean monthView)
+    {
+        this.monthView = monthView;
+    }
+
+    /**
+     * Applies settings given as string, e.g. "latency=50,errors=0.01,lessons=4,capacity=8,months=false"
+     *
+     * @param settings comma separated settings latency (ms), errors (rate between 0 and 1), lessons (per day),
+     *                 capacity (concurrent requests) and months (whether month pages are served)
+     * @throws IllegalArgumentException if a setting is unknown or has an invalid value
+     */
+    public void configure(String settings)
+    {
+        for (String setting : settings.split(",")) {
+            String[] parts = setting.trim().split("=");
+
+            if (parts.length != 2)
+                throw new IllegalArgumentException("Invalid setting '" + setting + "'");
+
+            switch (parts[0]) {
+                case "latency":
+                    setLatency(Integer.parseInt(parts[1]));
+                    break;
+                case "errors":
+                    setErrorRate(Double.parseDouble(parts[1]));
+                    break;
+                case "lessons":
+                    setLessonsPerDay(Integer.parseInt(parts[1]));
+                    break;
+                case "capacity":
+                    setCapacity(Integer.parseInt(parts[1]));
+                    break;
+                case "months":
+                    setMonthView(Boolean.parseBoolean(parts[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown setting '" + parts[0] + "'");
+            }
+        }
+    }
+
+    /**
+     * Starts answering requests
+     */
+    public void start()
+    {
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stops the server
+     */
+    public void stop()
+    {
+        server.stop(0);
+
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Gets a rapla link to a calendar of this server
+     *
+     * @param key key of the calendar
+     * @return link to the calendar
+     */
+    public URI getCalendarUri(String key)
+    {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + "/rapla?key=" + key);
+    }
+
+    public int getCountRequests()
+    {
+        return countRequests.get();
+    }
+
+    public int getCountErrors()
+    {
+        return countErrors.get();
+    }
+
+    /**
+     * Answers a request with the week page of the requested calendar and date
+     *
+     * @param exchange the request and response
+     * @throws IOException if the response couldn't be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        countRequests.incrementAndGet();
+
+        try {
+            // like an overloaded server, throttle the requests exceeding the capacity
+            if (capacity > 0 && inFlight.incrementAndGet() > capacity) {
+                countErrors.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "Too many requests");
+                return;
+            }
+
+            simulateLatency();
+
+            Map<String, String> parameters = new HashMap<>();
+            List<NameValuePair> query = URLEncodedUtils.parse(exchange.getRequestURI(), "UTF-8");
+            for (NameValuePair parameter : query)
+                parameters.put(parameter.getName(), parameter.getValue());
+
+            if (!parameters.containsKey("key") && !(parameters.containsKey("page") && parameters.containsKey("user")
+                    && parameters.containsKey("file"))) {
+                respond(exchange, 404, "Calendar not found");
+                return;
+            }
+
+            String calendar = parameters.containsKey("key") ? parameters.get("key")
+                    : parameters.get("user") + "/" + parameters.get("file");
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                countErrors.incrementAndGet();
+                respond(exchange, 503, "Service unavailable");
+                return;
+            }
+
+            LocalDate date = getRequestedDate(parameters);
+
+            if (monthView && "month".equals(parameters.get(CalendarView.PARAMETER)))
+                respond(exchange, 200, createMonthPage(calendar, date.withDayOfMonth(1)));
+            else
+                respond(exchange, 200, createWeekPage(calendar, date.with(DayOfWeek.MONDAY)));
+        } catch (Exception e) {
+            respond(exchange, 500, e.toString());
+        } finally {
+            if (capacity > 0)
+                inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for the configured latency with a jitter of up to 50 percent
+     *
+     * @throws InterruptedException if the server was stopped while waiting
+     */
+    private void simulateLatency() throws InterruptedException
+    {
+        if (latency <= 0)
+            return;
+
+        int jitter = latency / 2;
+        Thread.sleep(latency - jitter + ThreadLocalRandom.current().nextInt(2 * jitter + 1));
+    }
+
+    /**
+     * Determines the requested date, today if no date parameters are given
+     *
+     * @param parameters GET-parameters of the request
+     * @return requested date
+     */
+    private LocalDate getRequestedDate(Map<String, String> parameters)
+    {
+        if (!parameters.containsKey("day") || !parameters.containsKey("month") || !parameters.containsKey("year"))
+            return LocalDate.now();
+
+        return LocalDate.of(Integer.parseInt(parameters.get("year")), Integer.parseInt(parameters.get("month")),
+                Integer.parseInt(parameters.get("day")));
+    }
+
+    /**
+     * Sends a HTML response, compressed with gzip if the client accepts it
+     *
+     * @param exchange   the request and response
+     * @param statusCode HTTP status code
+     * @param content    HTML content
+     * @throws IOException if the response couldn't be sent
+     */
+    private void respond(HttpExchange exchange, int statusCode, String content) throws IOException
+    {
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+
+        // compress like a rapla server behind a web server with compression enabled
+        if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+            try (OutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(statusCode, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Generates the page of a week. The schedule of a calendar is the same every week, but some lessons are cancelled
+     * in some weeks.
+     *
+     * @param calendar   identification of the calendar
+     * @param mondayDate monday date of the week
+     * @return HTML content of the page
+     */
+    public String createWeekPage(String calendar, LocalDate mondayDate)
+    {
+        String[][][] schedule = createWeekSchedule(calendar, mondayDate);
+        StringBuilder page = new StringBuilder();
+
+        appendPageHead(page, calendar);
+        page.append("<table class=\"week_table\">\n<tbody>\n<tr><td class=\"week_number\">KW ")
+                .append(mondayDate.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)).append("</td>");
+
+        for (int day = 0; day < 5; day++)
+            page.append("<td class=\"week_header\"><nobr>").append(WEEKDAYS[day]).append(' ')
+                    .append(mondayDate.plusDays(day)).append("</nobr></td>");
+
+        page.append("</tr>\n");
+
+        for (int slot = 0; slot < lessonsPerDay; slot++) {
+            page.append("<tr><td class=\"week_times\"><nobr>").append(SLOTS[slot]).append("</nobr></td>");
+
+            for (int day = 0; day < 5; day++) {
+                String[] lesson = schedule[slot][day];
+
+                if (lesson == null) {
+                    page.append("<td class=\"week_emptycell_black\">&nbsp;</td>");
+                } else {
+                    page.append("<td class=\"week_block\" rowspan=\"6\">");
+                    appendLesson(page, WEEKDAYS[day], SLOTS[slot], lesson[0], lesson[1], lesson[2]);
+                    page.append("</td>");
+                }
+            }
+
+            page.append("</tr>\n");
+        }
+
+        return page.append("</tbody>\n</table>\n</body>\n</html>\n").toString();
+    }
+
+    /**
+     * Generates the page of a month with a cell per day, containing the same lessons as the week pages
+     *
+     * @param calendar   identification of the calendar
+     * @param monthStart first day of the month
+     * @return HTML content of the page
+     */
+    public String createMonthPage(String calendar, LocalDate monthStart)
+    {
+        Map<LocalDate, String[][][]> schedules = new HashMap<>();
+        StringBuilder page = new StringBuilder();
+
+        appendPageHead(page, calendar);
+        page.append("<table class=\"month_table\">\n<tbody>\n<tr>");
+
+        for (String weekday : WEEKDAYS)
+            page.append("<td class=\"month_header\">").append(weekday).append("</td>");
+
+        page.append("</tr>\n");
+
+        for (LocalDate monday = monthStart.with(DayOfWeek.MONDAY); monday.getMonth() == monthStart.getMonth()
+                || monday.isBefore(monthStart); monday = monday.plusWeeks(1)) {
+            page.append("<tr>");
+
+            for (int day = 0; day < WEEKDAYS.length; day++) {
+                LocalDate date = monday.plusDays(day);
+
+                if (date.getMonth() != monthStart.getMonth()) {
+                    page.append("<td class=\"month_emptycell\">&nbsp;</td>");
+                    continue;
+                }
+
+                page.append("<td class=\"month_cell\" valign=\"top\"><div class=\"month_number\">")
+                        .append(date.getDayOfMonth()).append("</div>");
+
+                if (day < 5) {
+                    String[][][] schedule = schedules.computeIfAbsent(monday, key -> createWeekSchedule(calendar, key));
+
+                    for (int slot = 0; slot < lessonsPerDay; slot++) {
+                        String[] lesson = schedule[slot][day];
+
+                        if (lesson != null) {
+                            page.append("<div class=\"month_block\">");
+                            appendLesson(page, WEEKDAYS[day], SLOTS[slot], lesson[0], lesson[1], lesson[2]);
+                            page.append("</div>");
+                        }
+                    }
+                }
+
+                page.append("</td>");
+            }
+
+            page.append("</tr>\n");
+        }
+
+        return page.append("</tbody>\n</table>\n</body>\n</html>\n").toString();
+    }
+
+    /**
+     * Generates the lessons of a week. The schedule of a calendar is the same every week, but some lessons are
+     * cancelled in some weeks.
+     *
+     * @param calendar   identification of the calendar
+     * @param mondayDate monday date of the week
+     * @return title, professor and room by time slot and weekday from monday to friday, null for cancelled lessons
+     */
+    private String[][][] createWeekSchedule(String calendar, LocalDate mondayDate)
+    {
+        Random schedule = new Random(calendar.hashCode());
+        Random week = new Random(calendar.hashCode() * 31L + mondayDate.toEpochDay());
+        String[][][] lessons = new String[lessonsPerDay][5][];
+
+        for (int slot = 0; slot < lessonsPerDay; slot++) {
+            for (int day = 0; day < 5; day++) {
+                String[] course = COURSES[schedule.nextInt(COURSES.length)];
+                String room = "RB " + (1 + schedule.nextInt(3)) + "." + (10 + schedule.nextInt(20)) + " Hörsaal";
+                boolean cancelled = week.nextInt(10) == 0;
+
+                if (!cancelled)
+                    lessons[slot][day] = new String[]{course[0], course[1], room};
+            }
+        }
+
+        return lessons;
+    }
+
+    /**
+     * Appends the beginning of a page up to the calendar title
+     *
+     * @param page     page to append to
+     * @param calendar identification of the calendar
+     */
+    private static void appendPageHead(StringBuilder page, String calendar)
+    {
+        page.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\n<html>\n<head>\n")
+                .append("<title>").append(calendar).append("</title>\n")
+                .append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n")
+                .append("</head>\n<body>\n<h2 class=\"title\">").append(calendar).append("</h2>\n");
+    }
+
+    /**
+     * Appends the link of a lesson block with its tooltip as rapla does
+     *
+     * @param page      page to append to
+     * @param weekday   German weekday token
+     * @param timeFrom  begin of the lesson
+     * @param title     title of the lesson
+     * @param professor professor in format "Surname, Prename"
+     * @param room      room of the lesson
+     */
+    private void appendLesson(StringBuilder page, String weekday, LocalTime timeFrom, String title, String professor,
+                              String room)
+    {
+        String escapedTitle = title.replace("&", "&amp;");
+        LocalTime timeUntil = timeFrom.plusMinutes(90);
+
+        page.append("<a href=\"#\"><span class=\"tooltip\">")
+                .append("<strong>Lehrveranstaltung</strong>")
+                .append("<div>").append(weekday).append(' ').append(timeFrom).append('-').append(timeUntil)
+                .append(" wöchentlich</div>")
+                .append("<table>")
+                .append("<tr><td class=\"label\">Titel:</td><td class=\"value\">").append(escapedTitle)
+                .append("</td></tr>")
+                .append("<tr><td class=\"label\">Veranstaltungsart:</td><td class=\"value\">Vorlesung</td></tr>")
+                .append("<tr><td class=\"label\">Ressourcen:</td><td class=\"value\">").append(room)
+                .append(", TINF15B1</td></tr>")
+                .append("<tr><td class=\"label\">Personen:</td><td class=\"value\">").append(professor)
+                .append("</td></tr>")
+                .append("</table></span>")
+                .append("<div>").append(timeFrom).append("&#160;-").append(timeUntil).append("</div>")
+                .append("<div>").append(escapedTitle).append("</div></a>");
+    }
+}
@@ -0,0 +1,434 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.jsoup.HttpStatusException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport limiting the requests of another transport per host, so a shared rapla server isn't overloaded and
+ * throttling doesn't abort the extraction. Every host gets a token bucket for the request rate and a concurrency limit
+ * which is adjusted additive-increase/multiplicative-decrease: it grows slowly while the host answers fast and is
+ * halved when the host throttles (status 429 or 503) or its latency rises. Failed requests are retried a bounded
+ * number of times with jittered exponential backoff.
+ */
+public class GovernedTransport implements RaplaTransport
+{
+    /**
+     * Base delay of the exponential backoff in milliseconds
+     */
+    private static final long BACKOFF_BASE = 500;
+
+    /**
+     * Maximum delay of the exponential backoff in milliseconds
+     */
+    private static final long BACKOFF_MAX = 30000;
+
+    /**
+     * Factor by which the recent latency has to exceed the long-term latency to count as overload
+     */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * Transport doing the requests
+     */
+    private RaplaTransport delegate;
+
+    /**
+     * Maximum number of concurrent requests per host
+     */
+    private int maxConcurrency;
+
+    /**
+     * Maximum number of requests per second and host, 0 for unlimited
+     */
+    private double maxRate = 0;
+
+    /**
+     * Maximum number of retries of a failed request
+     */
+    private int maxRetries = 4;
+
+    /**
+     * State of every requested host
+     */
+    private Map<String, HostGovernor> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Counter for retried requests
+     */
+    private AtomicInteger countRetries = new AtomicInteger();
+
+    /**
+     * Counter for responses telling that the host throttles
+     */
+    private AtomicInteger countThrottled = new AtomicInteger();
+
+    /**
+     * Receiver of the retry and throttling counts
+     */
+    private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+
+    /**
+     * Constructs a new transport
+     *
+     * @param delegate       transport doing the requests
+     * @param maxConcurrency maximum number of concurrent requests per host, at least 1
+     */
+    public GovernedTransport(RaplaTransport delegate, int maxConcurrency)
+    {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+
+        this.delegate = delegate;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of requests per second and host
+     *
+     * @param maxRate requests per second, 0 for unlimited
+     */
+    public void setMaxRate(double maxRate)
+    {
+        if (maxRate < 0)
+            throw new IllegalArgumentException("Rate must not be negative");
+
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Sets the maximum number of retries of a failed request
+     *
+     * @param maxRetries number of retries, 0 to fail on the first error
+     */
+    public void setMaxRetries(int maxRetries)
+    {
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("Retries must not be negative");
+
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets the receiver of the retry and throttling counts
+     *
+     * @param metrics registry to use
+     */
+    public void setMetrics(MetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public RaplaResponse fetch(URI uri) throws IOException
+    {
+        return execute(uri, () -> delegate.fetch(uri));
+    }
+
+    @Override
+    public RaplaResponse fetchIfModified(URI uri, String eTag, String lastModified) throws IOException
+    {
+        return execute(uri, () -> delegate.fetchIfModified(uri, eTag, lastModified));
+    }
+
+    /**
+     * Sends a request as soon as the host allows it and retries it if it failed temporarily
+     *
+     * @param uri     requested link
+     * @param request request to send
+     * @return the response of the request
+     * @throws IOException if the request failed permanently or more often than the retries allow
+     */
+    private RaplaResponse execute(URI uri, Request request) throws IOException
+    {
+        HostGovernor host = hosts.computeIfAbsent(uri.getHost() + ":" + uri.getPort(), key -> new HostGovernor());
+
+        for (int attempt = 0; ; attempt++) {
+            long retryDelay;
+
+            host.acquire();
+            long start = System.nanoTime();
+
+            try {
+                RaplaResponse response = request.execute();
+                host.onSuccess(System.nanoTime() - start);
+
+                return response;
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException || attempt >= maxRetries || !isRetryable(e))
+                    throw e;
+
+                retryDelay = Math.max(handleFailure(host, e), getBackoffDelay(attempt));
+            } finally {
+                host.release();
+            }
+
+            // wait without blocking a slot of the host
+            countRetries.incrementAndGet();
+            metrics.count("rapla_retries_total", 1);
+            sleep(retryDelay);
+        }
+    }
+
+    /**
+     * Updates the governor of the host after a failed request
+     *
+     * @param host governor of the requested host
+     * @param e    error of the request
+     * @return time the host asked to wait in milliseconds or -1
+     */
+    private long handleFailure(HostGovernor host, IOException e)
+    {
+        if (e instanceof RaplaHttpException && ((RaplaHttpException) e).isThrottled()) {
+            // a host asking to wait longer than the longest backoff doesn't stall the extraction for that long
+            long retryAfterMillis = Math.min(((RaplaHttpException) e).getRetryAfterMillis(), BACKOFF_MAX);
+
+            countThrottled.incrementAndGet();
+            metrics.count("rapla_throttled_total", 1);
+            host.onThrottled(retryAfterMillis);
+
+            return retryAfterMillis;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Checks if a failed request may succeed when sent again. Network errors and temporary server errors are
+     * retryable, errors like an unknown calendar (404), an invalid link or an unknown host are not.
+     *
+     * @param e error of the request
+     * @return true if the request should be retried
+     */
+    private static boolean isRetryable(IOException e)
+    {
+        if (e instanceof RaplaHttpException)
+            return ((RaplaHttpException) e).isTransient();
+
+        return !(e instanceof HttpStatusException || e instanceof MalformedURLException
+                || e instanceof UnknownHostException);
+    }
+
+    /**
+     * Gets the delay before a retry, exponential in the attempt and randomly shortened by up to half, so concurrent
+     * requests don't retry at the same time
+     *
+     * @param attempt number of the failed attempt, starting at 0
+     * @return delay in milliseconds
+     */
+    private static long getBackoffDelay(int attempt)
+    {
+        long maxDelay = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt, 16));
+
+        return ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1);
+    }
+
+    /**
+     * Waits for the given time
+     *
+     * @param millis time to wait in milliseconds
+     * @throws InterruptedIOException if waiting was interrupted
+     */
+    private static void sleep(long millis) throws InterruptedIOException
+    {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for rapla server was interrupted");
+        }
+    }
+
+    @Override
+    public String getStatistics()
+    {
+        StringBuilder limits = new StringBuilder();
+
+        for (HostGovernor host : hosts.values())
+            limits.append(limits.length() == 0 ? "" : "/").append(host.getConcurrencyLimit());
+
+        return "governor: " + countRetries.get() + " retries, " + countThrottled.get() + " throttled, concurrency "
+                + (limits.length() == 0 ? maxConcurrency : limits) + ", " + delegate.getStatistics();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        delegate.close();
+    }
+
+    /**
+     * Request to the delegate transport
+     */
+    private interface Request
+    {
+        RaplaResponse execute() throws IOException;
+    }
+
+    /**
+     * Rate and concurrency limits of a single host
+     */
+    private class HostGovernor
+    {
+        /**
+         * Current limit of concurrent requests, fractional for the additive increase
+         */
+        private double concurrencyLimit = maxConcurrency;
+
+        /**
+         * Number of requests currently sent to the host
+         */
+        private int inFlight = 0;
+
+        /**
+         * Available tokens of the bucket, negative if requests are waiting for tokens
+         */
+        private double tokens = Math.max(maxRate, 1);
+
+        /**
+         * Time of the last token refill in nanoseconds
+         */
+        private long lastRefill = System.nanoTime();
+
+        /**
+         * Time in nanoseconds until no requests are sent as the host asked to wait
+         */
+        private long pausedUntil = System.nanoTime();
+
+        /**
+         * Time of the last decrease of the concurrency limit in nanoseconds
+         */
+        private long lastDecrease = 0;
+
+        /**
+         * Smoothed latency of the recent requests in nanoseconds, 0 if unknown
+         */
+        private double recentLatency = 0;
+
+        /**
+         * Smoothed latency of the requests over a long time in nanoseconds, 0 if unknown
+         */
+        private double longTermLatency = 0;
+
+        /**
+         * Waits until a request may be sent to the host
+         *
+         * @throws InterruptedIOException if waiting was interrupted
+         */
+        private void acquire() throws InterruptedIOException
+        {
+            long waitNanos;
+
+            synchronized (this) {
+                try {
+                    while (inFlight >= Math.max((int) concurrencyLimit, 1))
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Waiting for rapla server was interrupted");
+                }
+
+                inFlight++;
+                waitNanos = Math.max(pausedUntil - System.nanoTime(), reserveToken());
+            }
+
+            if (waitNanos > 0) {
+                try {
+                    sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+                } catch (InterruptedIOException e) {
+                    release();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Takes a token out of the bucket, possibly in advance
+         *
+         * @return time in nanoseconds until the token is available
+         */
+        private long reserveToken()
+        {
+            if (maxRate <= 0)
+                return 0;
+
+            long now = System.nanoTime();
+            tokens = Math.min(tokens + (now - lastRefill) / 1e9 * maxRate, Math.max(maxRate, 1));
+            lastRefill = now;
+            tokens--;
+
+            return tokens >= 0 ? 0 : (long) (-tokens / maxRate * 1e9);
+        }
+
+        /**
+         * Frees the slot of a finished request
+         */
+        private synchronized void release()
+        {
+            inFlight--;
+            notifyAll();
+        }
+
+        /**
+         * Adjusts the concurrency limit after a successful request. Rising latency reduces the limit, otherwise it
+         * grows by about one per round of requests.
+         *
+         * @param latency latency of the request in nanoseconds
+         */
+        private synchronized void onSuccess(long latency)
+        {
+            recentLatency = recentLatency == 0 ? latency : recentLatency * 0.7 + latency * 0.3;
+            longTermLatency = longTermLatency == 0 ? latency : longTermLatency * 0.98 + latency * 0.02;
+
+            if (recentLatency > LATENCY_TOLERANCE * longTermLatency)
+                decrease();
+            else
+                concurrencyLimit = Math.min(concurrencyLimit + 1 / concurrencyLimit, maxConcurrency);
+        }
+
+        /**
+         * Halves the concurrency limit and pauses the host if it asked to wait
+         *
+         * @param retryAfterMillis time the host asked to wait in milliseconds, at most the maximum backoff, or -1
+         */
+        private synchronized void onThrottled(long retryAfterMillis)
+        {
+            if (retryAfterMillis > 0) {
+                long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+                pausedUntil = Math.max(pausedUntil, retryAt);
+            }
+
+            decrease();
+        }
+
+        /**
+         * Halves the concurrency limit, at most once per latency period, as the requests sent before the decrease
+         * report the same overload
+         */
+        private void decrease()
+        {
+            long now = System.nanoTime();
+
+            if (now - lastDecrease < recentLatency)
+                return;
+
+            concurrencyLimit = Math.max(concurrencyLimit / 2, 1);
+            lastDecrease = now;
+        }
+
+        private synchronized int getConcurrencyLimit()
+        {
+            return (int) concurrencyLimit;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens export files compressed with gzip if their name ends with .gz, e.g. "rapla.csv.gz". Lesson exports compress
+ * very well, as titles, rooms and professors repeat every week.
+ */
+public class GzipFiles
+{
+    /**
+     * Extension of gzip compressed files
+     */
+    public static final String EXTENSION = ".gz";
+
+    /**
+     * Size of the compression buffers in bytes
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+
+    private GzipFiles()
+    {
+    }
+
+    /**
+     * Checks if a file is compressed by its name
+     *
+     * @param fileName name of the file
+     * @return true for the extension .gz
+     */
+    public static boolean isGzipFileName(String fileName)
+    {
+        return fileName.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Removes the compression extension of a file name, e.g. to determine the format of the content
+     *
+     * @param fileName name of the file
+     * @return name without .gz
+     */
+    public static String stripExtension(String fileName)
+    {
+        return isGzipFileName(fileName) ? fileName.substring(0, fileName.length() - EXTENSION.length()) : fileName;
+    }
+
+    /**
+     * Opens a file for writing, compressed if its name ends with .gz. The compression is finished when the stream is
+     * closed.
+     *
+     * @param file file to create or replace
+     * @return stream to write the content to
+     * @throws IOException if the file couldn't be opened
+     */
+    public static OutputStream newOutputStream(Path file) throws IOException
+    {
+        OutputStream out = Files.newOutputStream(file);
+
+        return isGzipFileName(file.getFileName().toString()) ? compress(out) : out;
+    }
+
+    /**
+     * Compresses everything written to a stream with gzip. Flushing the returned stream passes all content written so
+     * far on compressed, so streamed lessons reach the reader while later pages are still extracted.
+     *
+     * @param out stream for the compressed content, closed with the returned stream
+     * @return stream to write the uncompressed content to
+     * @throws IOException if the gzip header couldn't be written
+     */
+    public static OutputStream compress(OutputStream out) throws IOException
+    {
+        return new GZIPOutputStream(out, BUFFER_SIZE, true);
+    }
+
+    /**
+     * Opens a file for reading, decompressed if it starts like a gzip file regardless of its name
+     *
+     * @param file file to read
+     * @return stream with the uncompressed content
+     * @throws IOException if the file couldn't be opened
+     */
+    public static InputStream newInputStream(Path file) throws IOException
+    {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+
+        // look for the magic number at the beginning of gzip files
+        in.mark(2);
+        boolean compressed = in.read() == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                && in.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+        in.reset();
+
+        return compressed ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+}
@@ -0,0 +1,381 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Export of lessons to an iCalendar file. Lessons taking place every week with the same title, time, room and
+ * professor are written as one event with a weekly recurrence rule, weeks without the lesson are excluded, so the file
+ * is much smaller than one event per lesson.
+ */
+public class IcsExporter
+{
+    /**
+     * Time zone of the rapla times
+     */
+    private static final String TIME_ZONE = "Europe/Berlin";
+
+    /**
+     * Definition of the time zone for calendars which don't know it, with the daylight saving rules since 1996
+     */
+    private static final String[] TIME_ZONE_DEFINITION = {
+            "BEGIN:VTIMEZONE",
+            "TZID:" + TIME_ZONE,
+            "BEGIN:DAYLIGHT",
+            "TZOFFSETFROM:+0100",
+            "TZOFFSETTO:+0200",
+            "TZNAME:CEST",
+            "DTSTART:19700329T020000",
+            "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU",
+            "END:DAYLIGHT",
+            "BEGIN:STANDARD",
+            "TZOFFSETFROM:+0200",
+            "TZOFFSETTO:+0100",
+            "TZNAME:CET",
+            "DTSTART:19701025T030000",
+            "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU",
+            "END:STANDARD",
+            "END:VTIMEZONE"
+    };
+
+    /**
+     * Most weeks in a row without the lesson which are still excluded from a series, longer gaps like semester breaks
+     * start a new series
+     */
+    private static final int MAX_GAP_WEEKS = 4;
+
+    /**
+     * Maximum length of a line in bytes, longer lines are folded
+     */
+    private static final int MAX_LINE_LENGTH = 75;
+
+    /**
+     * Line separator of iCalendar files
+     */
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    /**
+     * Format of local date-times
+     */
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+    /**
+     * Series of weekly lessons, sorted by their first lesson
+     */
+    private List<Series> series = new ArrayList<>();
+
+    /**
+     * Time the calendar was created, written as time stamp of all events
+     */
+    private Instant timestamp = Instant.now();
+
+    /**
+     * Number of lessons in all series, equal lessons on the same date are counted once like they're written once
+     */
+    private int countLessons = 0;
+
+
+    /**
+     * Constructs a new exporter and groups the lessons into weekly series
+     *
+     * @param lessons lessons to export
+     */
+    public IcsExporter(List<Lesson> lessons)
+    {
+        Map<SeriesKey, TreeSet<LocalDate>> datesBySeries = new HashMap<>();
+
+        for (Lesson lesson : lessons)
+            datesBySeries.computeIfAbsent(new SeriesKey(lesson), key -> new TreeSet<>()).add(lesson.getStartDate());
+
+        for (Map.Entry<SeriesKey, TreeSet<LocalDate>> entry : datesBySeries.entrySet()) {
+            splitIntoSeries(entry.getKey(), entry.getValue());
+            countLessons += entry.getValue().size();
+        }
+
+        series.sort(Comparator.comparing((Series s) -> s.dates.get(0))
+                .thenComparing(s -> s.key.startTime, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(s -> s.key.title, Comparator.nullsFirst(Comparator.naturalOrder())));
+    }
+
+    /**
+     * Sets the time the calendar was created, e.g. for reproducible files
+     *
+     * @param timestamp time stamp of the events
+     */
+    public void setTimestamp(Instant timestamp)
+    {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Splits the dates of equal lessons into series without long gaps
+     *
+     * @param key   fields which are equal for all lessons, including the weekday
+     * @param dates dates of the lessons in ascending order
+     */
+    private void splitIntoSeries(SeriesKey key, TreeSet<LocalDate> dates)
+    {
+        Series current = null;
+
+        for (LocalDate date : dates) {
+            boolean continues = current != null
+                    && ChronoUnit.WEEKS.between(current.getLastDate(), date) <= MAX_GAP_WEEKS + 1;
+
+            if (!continues) {
+                current = new Series(key);
+                series.add(current);
+            }
+
+            current.dates.add(date);
+        }
+    }
+
+    public int getCountEvents()
+    {
+        return series.size();
+    }
+
+    public int getCountLessons()
+    {
+        return countLessons;
+    }
+
+    /**
+     * Writes the calendar
+     *
+     * @param out stream to write the calendar to, isn't closed
+     * @throws IOException if the calendar couldn't be written
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        String stamp = DATE_TIME_FORMAT.format(timestamp.atOffset(ZoneOffset.UTC)) + "Z";
+
+        writeLine(writer, "BEGIN:VCALENDAR");
+        writeLine(writer, "VERSION:2.0");
+        writeLine(writer, "PRODID:-//rapla2csv//rapla2csv//DE");
+        writeLine(writer, "CALSCALE:GREGORIAN");
+
+        for (String line : TIME_ZONE_DEFINITION)
+            writeLine(writer, line);
+
+        for (Series lessonSeries : series)
+            writeEvent(writer, lessonSeries, stamp);
+
+        writeLine(writer, "END:VCALENDAR");
+        writer.flush();
+    }
+
+    /**
+     * Writes a series as event, with recurrence rule and excluded weeks if it has more than one lesson
+     *
+     * @param writer writer for the calendar
+     * @param series series to write
+     * @param stamp  time stamp of the event
+     * @throws IOException if the event couldn't be written
+     */
+    private void writeEvent(Writer writer, Series series, String stamp) throws IOException
+    {
+        SeriesKey key = series.key;
+        LocalDate firstDate = series.dates.get(0);
+
+        writeLine(writer, "BEGIN:VEVENT");
+        writeLine(writer, "UID:" + series.getUid());
+        writeLine(writer, "DTSTAMP:" + stamp);
+        writeLine(writer, "DTSTART;TZID=" + TIME_ZONE + ":" + formatDateTime(firstDate, key.startTime));
+        writeLine(writer, "DTEND;TZID=" + TIME_ZONE + ":"
+                + formatDateTime(firstDate.plusDays(key.durationDays), key.endTime));
+
+        if (series.dates.size() > 1) {
+            long weeks = ChronoUnit.WEEKS.between(firstDate, series.getLastDate()) + 1;
+            writeLine(writer, "RRULE:FREQ=WEEKLY;COUNT=" + weeks);
+
+            Set<LocalDate> dates = new HashSet<>(series.dates);
+            List<String> excludedDates = new ArrayList<>();
+
+            for (LocalDate date = firstDate; date.isBefore(series.getLastDate()); date = date.plusWeeks(1))
+                if (!dates.contains(date))
+                    excludedDates.add(formatDateTime(date, key.startTime));
+
+            if (!excludedDates.isEmpty())
+                writeLine(writer, "EXDATE;TZID=" + TIME_ZONE + ":" + String.join(",", excludedDates));
+        }
+
+        writeLine(writer, "SUMMARY:" + escape(key.title));
+
+        if (key.professor != null && !key.professor.isEmpty())
+            writeLine(writer, "DESCRIPTION:" + escape(key.professor));
+        if (key.room != null && !key.room.isEmpty())
+            writeLine(writer, "LOCATION:" + escape(key.room));
+
+        writeLine(writer, "END:VEVENT");
+    }
+
+    /**
+     * Formats a local date-time
+     *
+     * @param date date
+     * @param time time, midnight if null
+     * @return date-time in iCalendar format
+     */
+    private static String formatDateTime(LocalDate date, LocalTime time)
+    {
+        return DATE_TIME_FORMAT.format(date.atTime(time != null ? time : LocalTime.MIDNIGHT));
+    }
+
+    /**
+     * Escapes a text value
+     *
+     * @param value text to escape, may null
+     * @return escaped text
+     */
+    static String escape(String value)
+    {
+        if (value == null)
+            return "";
+
+        StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\\' || c == ';' || c == ',')
+                escaped.append('\\').append(c);
+            else if (c == '\n')
+                escaped.append("\\n");
+            else if (c != '\r')
+                escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    /**
+     * Writes a content line, folded into several lines if it's longer than allowed
+     *
+     * @param writer writer for the calendar
+     * @param line   content line
+     * @throws IOException if the line couldn't be written
+     */
+    private static void writeLine(Writer writer, String line) throws IOException
+    {
+        int lineBytes = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            int charBytes = c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 2 : 3;
+
+            // fold before the character, continuation lines start with a space
+            if (lineBytes + charBytes > MAX_LINE_LENGTH && !Character.isLowSurrogate(c)) {
+                writer.write(LINE_SEPARATOR);
+                writer.write(' ');
+                lineBytes = 1;
+            }
+
+            writer.write(c);
+            lineBytes += charBytes;
+        }
+
+        writer.write(LINE_SEPARATOR);
+    }
+
+    /**
+     * Weekday and fields which are equal for all lessons of a series
+     */
+    private static class SeriesKey
+    {
+        private final DayOfWeek weekday;
+        private final String title;
+        private final LocalTime startTime;
+        private final LocalTime endTime;
+        private final long durationDays;
+        private final String professor;
+        private final String room;
+
+        private SeriesKey(Lesson lesson)
+        {
+            weekday = lesson.getStartDate().getDayOfWeek();
+            title = lesson.getTitle();
+            startTime = lesson.getStartTime();
+            endTime = lesson.getEndTime();
+            durationDays = ChronoUnit.DAYS.between(lesson.getStartDate(), lesson.getEndDate());
+            professor = lesson.getProfessor();
+            room = lesson.getRoom();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof SeriesKey))
+                return false;
+
+            SeriesKey other = (SeriesKey) o;
+            return weekday == other.weekday && durationDays == other.durationDays
+                    && Objects.equals(title, other.title) && Objects.equals(startTime, other.startTime)
+                    && Objects.equals(endTime, other.endTime)
+                    && Objects.equals(professor, other.professor) && Objects.equals(room, other.room);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(weekday.getValue(), title, startTime, endTime, durationDays, professor, room);
+        }
+    }
+
+    /**
+     * Lessons with equal fields on the same weekday without long gaps
+     */
+    private static class Series
+    {
+        private final SeriesKey key;
+
+        /**
+         * Dates of the lessons in ascending order
+         */
+        private final List<LocalDate> dates = new ArrayList<>();
+
+        private Series(SeriesKey key)
+        {
+            this.key = key;
+        }
+
+        private LocalDate getLastDate()
+        {
+            return dates.get(dates.size() - 1);
+        }
+
+        /**
+         * Creates an id which stays the same for the same series in following exports
+         *
+         * @return unique id of the event
+         */
+        private String getUid()
+        {
+            return formatDateTime(dates.get(0), key.startTime) + "-"
+                    + Integer.toHexString(key.hashCode()) + "@rapla2csv";
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics registry keeping all measurements in memory, which can be dumped in the Prometheus text format, e.g. for
+ * scraping by a Prometheus server, or as a JSON run report. Distributions are summarized by count, sum and maximum.
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry
+{
+    /**
+     * Metrics by their name, sorted for a stable output
+     */
+    private Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * Time the registry was created in nanoseconds
+     */
+    private long startTime = System.nanoTime();
+
+
+    @Override
+    public void count(String name, String labelName, String labelValue, long amount)
+    {
+        getSeries(name, MetricType.COUNTER, labelName, labelValue).count.add(amount);
+    }
+
+    @Override
+    public void observe(String name, double value)
+    {
+        Series series = getSeries(name, MetricType.DISTRIBUTION, null, null);
+
+        synchronized (series) {
+            series.value = series.count.sum() == 0 ? value : Math.max(series.value, value);
+            series.count.increment();
+            series.sum.add(value);
+        }
+    }
+
+    @Override
+    public void gauge(String name, double value)
+    {
+        getSeries(name, MetricType.GAUGE, null, null).value = value;
+    }
+
+    /**
+     * Gets the series of a metric with the given label value, creating metric and series if they're new
+     *
+     * @param name       name of the metric
+     * @param type       type of the metric
+     * @param labelName  name of the label, null for none
+     * @param labelValue value of the label, null for none
+     * @return the series
+     */
+    private Series getSeries(String name, MetricType type, String labelName, String labelValue)
+    {
+        Metric metric = metrics.computeIfAbsent(name, key -> new Metric(type, labelName));
+
+        if (metric.type != type)
+            throw new IllegalArgumentException("Metric " + name + " is no " + type.name().toLowerCase());
+
+        return metric.series.computeIfAbsent(labelValue != null ? labelValue : "", key -> new Series());
+    }
+
+    /**
+     * Gets the time since the registry was created
+     *
+     * @return duration in seconds
+     */
+    public double getDurationSeconds()
+    {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    /**
+     * Creates a dump of all metrics in the Prometheus text format. Distributions are written as summary without
+     * quantiles and an additional gauge with the suffix _max.
+     *
+     * @return metrics in text format
+     */
+    public String toPrometheusText()
+    {
+        StringBuilder text = new StringBuilder();
+
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+
+            switch (metric.type) {
+                case COUNTER:
+                    text.append("# TYPE ").append(name).append(" counter\n");
+                    for (Map.Entry<String, Series> series : metric.series.entrySet())
+                        text.append(name).append(formatLabel(metric.labelName, series.getKey())).append(' ')
+                                .append(series.getValue().count.sum()).append('\n');
+                    break;
+                case DISTRIBUTION:
+                    Series series = metric.series.get("");
+                    text.append("# TYPE ").append(name).append(" summary\n");
+                    text.append(name).append("_count ").append(series.count.sum()).append('\n');
+                    text.append(name).append("_sum ").append(series.sum.sum()).append('\n');
+                    text.append("# TYPE ").append(name).append("_max gauge\n");
+                    text.append(name).append("_max ").append(series.value).append('\n');
+                    break;
+                case GAUGE:
+                    text.append("# TYPE ").append(name).append(" gauge\n");
+                    text.append(name).append(' ').append(metric.series.get("").value).append('\n');
+                    break;
+            }
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Formats a label for the Prometheus text format
+     *
+     * @param labelName  name of the label, null for none
+     * @param labelValue value of the label
+     * @return label in braces or an empty string if there's no label
+     */
+    private static String formatLabel(String labelName, String labelValue)
+    {
+        if (labelName == null)
+            return "";
+
+        String escaped = labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+
+        return "{" + labelName + "=\"" + escaped + "\"}";
+    }
+
+    /**
+     * Creates a report of the run in JSON format with the duration, all counters with their rate per second over
+     * the duration, the distributions with mean and maximum and all gauges
+     *
+     * @return report as JSON object
+     */
+    public String toJsonReport()
+    {
+        double duration = getDurationSeconds();
+        StringBuilder counters = new StringBuilder();
+        StringBuilder rates = new StringBuilder();
+        StringBuilder distributions = new StringBuilder();
+        StringBuilder gauges = new StringBuilder();
+
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String name = LessonDelta.jsonString(entry.getKey());
+            Metric metric = entry.getValue();
+
+            switch (metric.type) {
+                case COUNTER:
+                    long total = 0;
+                    StringBuilder labeled = new StringBuilder();
+
+                    for (Map.Entry<String, Series> series : metric.series.entrySet()) {
+                        long count = series.getValue().count.sum();
+                        total += count;
+                        appendMember(labeled, LessonDelta.jsonString(series.getKey()), Long.toString(count));
+                    }
+
+                    appendMember(counters, name, metric.labelName == null ? Long.toString(total)
+                            : "{" + labeled + "}");
+                    appendMember(rates, name, formatNumber(duration > 0 ? total / duration : 0));
+                    break;
+                case DISTRIBUTION:
+                    Series series = metric.series.get("");
+                    long count = series.count.sum();
+                    double sum = series.sum.sum();
+
+                    appendMember(distributions, name, "{\"count\":" + count + ",\"sum\":" + formatNumber(sum)
+                            + ",\"mean\":" + formatNumber(count > 0 ? sum / count : 0)
+                            + ",\"max\":" + formatNumber(series.value) + "}");
+                    break;
+                case GAUGE:
+                    appendMember(gauges, name, formatNumber(metric.series.get("").value));
+                    break;
+            }
+        }
+
+        return "{\"durationSeconds\":" + formatNumber(duration)
+                + ",\n\"counters\":{" + counters + "}"
+                + ",\n\"ratesPerSecond\":{" + rates + "}"
+                + ",\n\"distributions\":{" + distributions + "}"
+                + ",\n\"gauges\":{" + gauges + "}}\n";
+    }
+
+    /**
+     * Appends a member to the members of a JSON object
+     *
+     * @param members members of the object without braces
+     * @param name    quoted name of the member
+     * @param value   JSON value of the member
+     */
+    private static void appendMember(StringBuilder members, String name, String value)
+    {
+        if (members.length() > 0)
+            members.append(',');
+
+        members.append(name).append(':').append(value);
+    }
+
+    private static String formatNumber(double value)
+    {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * Kinds of metrics
+     */
+    private enum MetricType
+    {
+        COUNTER,
+        DISTRIBUTION,
+        GAUGE
+    }
+
+    /**
+     * Metric with one series per label value
+     */
+    private static class Metric
+    {
+        private final MetricType type;
+
+        /**
+         * Name of the label, null if the metric has no label
+         */
+        private final String labelName;
+
+        /**
+         * Series by label value, an empty string if the metric has no label
+         */
+        private final Map<String, Series> series = new ConcurrentSkipListMap<>();
+
+        private Metric(MetricType type, String labelName)
+        {
+            this.type = type;
+            this.labelName = labelName;
+        }
+    }
+
+    /**
+     * Current values of a metric
+     */
+    private static class Series
+    {
+        /**
+         * Counter value or number of measurements of a distribution
+         */
+        private final LongAdder count = new LongAdder();
+
+        /**
+         * Sum of the measurements of a distribution
+         */
+        private final DoubleAdder sum = new DoubleAdder();
+
+        /**
+         * Gauge value or maximum of the measurements of a distribution
+         */
+        private volatile double value = 0;
+    }
+}
@@ -0,0 +1,140 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reading and writing of lessons in the CSV format for calendars like Google calendar or Outlook
+ */
+public class LessonCsv
+{
+    /**
+     * Header for calendar CSV files
+     */
+    public static final String HEADER = "Subject,Start Date,Start Time,End Date,End Time,Description,Location";
+
+    /**
+     * Line separator of the CSV files
+     */
+    public static final String LINE_SEPARATOR = "\r\n";
+
+    /**
+     * Charset of the CSV files, independent of the platform so umlauts survive and files can be read again
+     */
+    public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+
+    private LessonCsv()
+    {
+    }
+
+    /**
+     * Creates the CSV row of a lesson without line separator
+     *
+     * @param lesson lesson to convert
+     * @return CSV row of the lesson
+     */
+    public static String toRow(Lesson lesson)
+    {
+        return quote(lesson.getTitle()) + ","
+                + lesson.getStartDate() + ","
+                + lesson.getStartTime() + ","
+                + lesson.getEndDate() + ","
+                + lesson.getEndTime() + ","
+                + quote(lesson.getProfessor()) + ","
+                + quote(lesson.getRoom());
+    }
+
+    /**
+     * Puts a value in quotes, quotes inside the value are doubled
+     *
+     * @param value value to quote
+     * @return quoted value
+     */
+    public static String quote(String value)
+    {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Parses a CSV row created by toRow
+     *
+     * @param row CSV row without line separator
+     * @return the lesson of the row
+     * @throws IllegalArgumentException if the row isn't a valid lesson row
+     */
+    public static Lesson parseRow(String row)
+    {
+        List<String> fields = splitRow(row);
+
+        if (fields.size() < 7)
+            throw new IllegalArgumentException("Invalid lesson row '" + row + "'");
+
+        return new Lesson(fields.get(0), LocalDate.parse(fields.get(1)), LocalDate.parse(fields.get(3)),
+                LocalTime.parse(fields.get(2)), LocalTime.parse(fields.get(4)), fields.get(5), fields.get(6));
+    }
+
+    /**
+     * Splits a CSV row into its fields, considering quoted fields
+     *
+     * @param row CSV row without line separator
+     * @return unquoted fields of the row
+     */
+    public static List<String> splitRow(String row)
+    {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+
+            if (quoted) {
+                if (c != '"')
+                    field.append(c);
+                else if (i + 1 < row.length() && row.charAt(i + 1) == '"')
+                    field.append(row.charAt(++i)); // doubled quote inside quoted field
+                else
+                    quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+
+        fields.add(field.toString());
+
+        return fields;
+    }
+
+    /**
+     * Reads all lessons of a CSV file
+     *
+     * @param file CSV file with header, may be compressed with gzip
+     * @return lessons of the file
+     * @throws IOException if the file couldn't be read or contains invalid rows
+     */
+    public static List<Lesson> read(Path file) throws IOException
+    {
+        List<Lesson> lessons = new LessonStore();
+
+        try (CsvLessonReader reader = new CsvLessonReader(file)) {
+            Lesson lesson;
+
+            while ((lesson = reader.read()) != null)
+                lessons.add(lesson);
+        }
+
+        return lessons;
+    }
+}
@@ -0,0 +1,188 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * Sink passing only the first occurrence of every lesson to another sink, e.g. for merging the calendars of several
+ * courses sharing lectures. Lessons are equal if title, start date, start and end time and room are equal, the
+ * professor isn't compared, as calendars of different courses sometimes name the professors differently.
+ * <p>
+ * Instead of the lessons only a 64 bit fingerprint of every passed lesson is kept in an open addressing hash table of
+ * primitive longs, so the index needs 8 to 16 bytes per lesson. Two different lessons have the same fingerprint only
+ * with a probability of about 1 to 10^19 per pair, which is negligible even for millions of lessons.
+ */
+public class LessonDeduplicator implements LessonSink
+{
+    /**
+     * Marks an empty slot of the hash table, fingerprints with this value are replaced
+     */
+    private static final long EMPTY = 0;
+
+    /**
+     * Receiver of the lessons which weren't passed before
+     */
+    private LessonSink delegate;
+
+    /**
+     * Fingerprints of the passed lessons, the length is a power of two
+     */
+    private long[] fingerprints = new long[1024];
+
+    /**
+     * Number of fingerprints in the hash table
+     */
+    private int size = 0;
+
+    /**
+     * Counter for dropped lessons
+     */
+    private int countDuplicates = 0;
+
+
+    /**
+     * Constructs a new deduplicator
+     *
+     * @param delegate receiver of the lessons which weren't passed before
+     */
+    public LessonDeduplicator(LessonSink delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void accept(Lesson lesson) throws IOException
+    {
+        if (add(fingerprint(lesson)))
+            delegate.accept(lesson);
+        else
+            countDuplicates++;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        delegate.flush();
+    }
+
+    public int getCountDuplicates()
+    {
+        return countDuplicates;
+    }
+
+    /**
+     * Adds a fingerprint to the hash table
+     *
+     * @param fingerprint fingerprint of a lesson
+     * @return false if the fingerprint was already added
+     */
+    private boolean add(long fingerprint)
+    {
+        if (fingerprint == EMPTY)
+            fingerprint = 1;
+
+        int mask = fingerprints.length - 1;
+
+        // the fingerprint is already well mixed, so its low bits are used as position with linear probing
+        for (int slot = (int) fingerprint & mask; fingerprints[slot] != EMPTY; slot = (slot + 1) & mask)
+            if (fingerprints[slot] == fingerprint)
+                return false;
+
+        insert(fingerprint);
+        size++;
+
+        // keep the load factor below 1/2, so the probe sequences stay short
+        if (size * 2 > fingerprints.length)
+            grow();
+
+        return true;
+    }
+
+    /**
+     * Puts a fingerprint into the first empty slot of its probe sequence
+     *
+     * @param fingerprint fingerprint which isn't in the table yet
+     */
+    private void insert(long fingerprint)
+    {
+        int mask = fingerprints.length - 1;
+        int slot = (int) fingerprint & mask;
+
+        while (fingerprints[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+
+        fingerprints[slot] = fingerprint;
+    }
+
+    /**
+     * Doubles the size of the hash table
+     */
+    private void grow()
+    {
+        long[] previousFingerprints = fingerprints;
+        fingerprints = new long[previousFingerprints.length * 2];
+
+        for (long fingerprint : previousFingerprints)
+            if (fingerprint != EMPTY)
+                insert(fingerprint);
+    }
+
+    /**
+     * Calculates the fingerprint of the compared fields of a lesson without creating any objects
+     *
+     * @param lesson the lesson
+     * @return 64 bit hash of title, start date, start and end time and room
+     */
+    static long fingerprint(Lesson lesson)
+    {
+        long hash = hash(0x9e3779b97f4a7c15L, lesson.getTitle());
+        hash = mix(hash ^ toLong(lesson.getStartDate()));
+        hash = mix(hash ^ (toLong(lesson.getStartTime()) << 32 | toLong(lesson.getEndTime()) & 0xffffffffL));
+
+        return hash(hash, lesson.getRoom());
+    }
+
+    /**
+     * Continues a hash with the characters of a string
+     *
+     * @param hash   previous hash
+     * @param string string to hash, may null
+     * @return new hash
+     */
+    private static long hash(long hash, String string)
+    {
+        if (string == null)
+            return mix(hash ^ 0x7f4a7c159e3779b9L);
+
+        for (int i = 0; i < string.length(); i++)
+            hash = (hash ^ string.charAt(i)) * 0x100000001b3L; // FNV-1a
+
+        // the length separates e.g. title "ab" and room "c" from title "a" and room "bc"
+        return mix(hash ^ string.length());
+    }
+
+    /**
+     * Spreads every bit of a hash over all bits, the finalizer of MurmurHash3
+     *
+     * @param hash hash to mix
+     * @return mixed hash
+     */
+    private static long mix(long hash)
+    {
+        hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+
+        return hash ^ hash >>> 33;
+    }
+
+    private static long toLong(LocalDate date)
+    {
+        return date == null ? Long.MIN_VALUE : date.toEpochDay();
+    }
+
+    private static long toLong(LocalTime time)
+    {
+        return time == null ? -1 : time.toSecondOfDay();
+    }
+}
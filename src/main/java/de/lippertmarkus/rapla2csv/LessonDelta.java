@@ -0,0 +1,355 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.*;
+
+/**
+ * Changes between the lessons of a previous export and the currently extracted lessons. Lessons are compared by title,
+ * date, time, room and professor. A removed and an added lesson with the same title and professor within the same
+ * week are reported as moved lesson.
+ */
+public class LessonDelta
+{
+    /**
+     * Kind of a change
+     */
+    public enum ChangeType
+    {
+        ADDED, REMOVED, MOVED
+    }
+
+    /**
+     * Header of delta CSV files
+     */
+    public static final String CSV_HEADER = "Change," + LessonCsv.HEADER
+            + ",Previous Start Date,Previous Start Time,Previous End Date,Previous End Time,Previous Location";
+
+    /**
+     * Lessons which were added since the previous export
+     */
+    private List<Lesson> added = new ArrayList<>();
+
+    /**
+     * Lessons which were removed since the previous export
+     */
+    private List<Lesson> removed = new ArrayList<>();
+
+    /**
+     * Moved lessons with their current version, in the same order as movedFrom
+     */
+    private List<Lesson> movedTo = new ArrayList<>();
+
+    /**
+     * Moved lessons with their previous version, in the same order as movedTo
+     */
+    private List<Lesson> movedFrom = new ArrayList<>();
+
+
+    /**
+     * Compares the lessons of the previous export with the current lessons
+     *
+     * @param previousLessons lessons of the previous export
+     * @param currentLessons  currently extracted lessons
+     */
+    public LessonDelta(List<Lesson> previousLessons, List<Lesson> currentLessons)
+    {
+        // hash index of the previous lessons, with number of occurrences as lessons may be listed multiple times
+        Map<LessonKey, Integer> previousIndex = new HashMap<>(previousLessons.size() * 2);
+        for (Lesson lesson : previousLessons)
+            previousIndex.merge(new LessonKey(lesson), 1, Integer::sum);
+
+        Map<LessonKey, Integer> currentIndex = new HashMap<>(currentLessons.size() * 2);
+        for (Lesson lesson : currentLessons)
+            currentIndex.merge(new LessonKey(lesson), 1, Integer::sum);
+
+        List<Lesson> candidatesAdded = collectUnmatched(currentLessons, previousIndex);
+        List<Lesson> candidatesRemoved = collectUnmatched(previousLessons, currentIndex);
+
+        matchMovedLessons(candidatesAdded, candidatesRemoved);
+    }
+
+    /**
+     * Collects all lessons which are not (or less often) contained in the other index
+     *
+     * @param lessons    lessons to check
+     * @param otherIndex index of the lessons to compare with, is consumed while matching
+     * @return lessons without counterpart
+     */
+    private List<Lesson> collectUnmatched(List<Lesson> lessons, Map<LessonKey, Integer> otherIndex)
+    {
+        Map<LessonKey, Integer> remaining = new HashMap<>(otherIndex);
+        List<Lesson> unmatched = new ArrayList<>();
+
+        for (Lesson lesson : lessons) {
+            LessonKey key = new LessonKey(lesson);
+            Integer count = remaining.get(key);
+
+            if (count == null || count == 0)
+                unmatched.add(lesson);
+            else
+                remaining.put(key, count - 1);
+        }
+
+        return unmatched;
+    }
+
+    /**
+     * Pairs added and removed lessons with the same title and professor within the same week as moved lessons,
+     * remaining lessons are really added or removed
+     *
+     * @param candidatesAdded   lessons only in the current lessons
+     * @param candidatesRemoved lessons only in the previous lessons
+     */
+    private void matchMovedLessons(List<Lesson> candidatesAdded, List<Lesson> candidatesRemoved)
+    {
+        Map<String, Deque<Lesson>> removedByWeek = new HashMap<>();
+        for (Lesson lesson : candidatesRemoved)
+            removedByWeek.computeIfAbsent(getMoveKey(lesson), k -> new ArrayDeque<>()).add(lesson);
+
+        for (Lesson lesson : candidatesAdded) {
+            Deque<Lesson> previousVersions = removedByWeek.get(getMoveKey(lesson));
+
+            if (previousVersions != null && !previousVersions.isEmpty()) {
+                movedTo.add(lesson);
+                movedFrom.add(previousVersions.poll());
+            } else {
+                added.add(lesson);
+            }
+        }
+
+        for (Deque<Lesson> remainingLessons : removedByWeek.values())
+            removed.addAll(remainingLessons);
+
+        removed.sort(Comparator.comparing(Lesson::getStartDate).thenComparing(Lesson::getStartTime)
+                .thenComparing(Lesson::getTitle));
+    }
+
+    /**
+     * Key for pairing moved lessons: title, professor and week
+     *
+     * @param lesson lesson to create key for
+     * @return key of the lesson
+     */
+    private String getMoveKey(Lesson lesson)
+    {
+        return lesson.getTitle() + '\0' + lesson.getProfessor() + '\0' + lesson.getStartDate().with(DayOfWeek.MONDAY);
+    }
+
+    public List<Lesson> getAdded()
+    {
+        return added;
+    }
+
+    public List<Lesson> getRemoved()
+    {
+        return removed;
+    }
+
+    public List<Lesson> getMovedTo()
+    {
+        return movedTo;
+    }
+
+    public List<Lesson> getMovedFrom()
+    {
+        return movedFrom;
+    }
+
+    /**
+     * Checks if there are any changes
+     *
+     * @return true if nothing was added, removed or moved
+     */
+    public boolean isEmpty()
+    {
+        return added.isEmpty() && removed.isEmpty() && movedTo.isEmpty();
+    }
+
+    /**
+     * Gets information about the changes
+     *
+     * @return string with the information
+     */
+    public String getDeltaInfo()
+    {
+        return added.size() + " lessons added, " + removed.size() + " lessons removed, " + movedTo.size()
+                + " lessons moved";
+    }
+
+    /**
+     * Saves the changes to a file, as JSON if the file name ends with .json, else as CSV, compressed with gzip if it
+     * additionally ends with .gz
+     *
+     * @param filename name of the file to create
+     * @throws IOException if the writing of the file failed
+     */
+    public void export(String filename) throws IOException
+    {
+        String fileContent = GzipFiles.stripExtension(filename).toLowerCase().endsWith(".json") ? toJson() : toCsv();
+
+        try (OutputStream out = GzipFiles.newOutputStream(Paths.get(filename))) {
+            out.write(fileContent.getBytes(LessonCsv.CHARSET));
+        }
+    }
+
+    /**
+     * Creates CSV content with a row for every change. Moved lessons contain their previous date, time and room.
+     *
+     * @return CSV content with header
+     */
+    public String toCsv()
+    {
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append(LessonCsv.LINE_SEPARATOR);
+
+        for (Lesson lesson : added)
+            csv.append(ChangeType.ADDED).append(',').append(LessonCsv.toRow(lesson)).append(",,,,,")
+                    .append(LessonCsv.LINE_SEPARATOR);
+
+        for (Lesson lesson : removed)
+            csv.append(ChangeType.REMOVED).append(',').append(LessonCsv.toRow(lesson)).append(",,,,,")
+                    .append(LessonCsv.LINE_SEPARATOR);
+
+        for (int i = 0; i < movedTo.size(); i++) {
+            Lesson previous = movedFrom.get(i);
+
+            csv.append(ChangeType.MOVED).append(',').append(LessonCsv.toRow(movedTo.get(i))).append(',')
+                    .append(previous.getStartDate()).append(',')
+                    .append(previous.getStartTime()).append(',')
+                    .append(previous.getEndDate()).append(',')
+                    .append(previous.getEndTime()).append(',')
+                    .append(LessonCsv.quote(previous.getRoom()))
+                    .append(LessonCsv.LINE_SEPARATOR);
+        }
+
+        return csv.toString();
+    }
+
+    /**
+     * Creates a JSON array with an object for every change. Moved lessons contain their previous version.
+     *
+     * @return JSON content
+     */
+    public String toJson()
+    {
+        List<String> changes = new ArrayList<>();
+
+        for (Lesson lesson : added)
+            changes.add("{\"change\":\"" + ChangeType.ADDED + "\",\"lesson\":" + toJson(lesson) + "}");
+
+        for (Lesson lesson : removed)
+            changes.add("{\"change\":\"" + ChangeType.REMOVED + "\",\"lesson\":" + toJson(lesson) + "}");
+
+        for (int i = 0; i < movedTo.size(); i++)
+            changes.add("{\"change\":\"" + ChangeType.MOVED + "\",\"lesson\":" + toJson(movedTo.get(i))
+                    + ",\"previous\":" + toJson(movedFrom.get(i)) + "}");
+
+        return "[\n" + String.join(",\n", changes) + "\n]\n";
+    }
+
+    /**
+     * Creates a JSON object of a lesson
+     *
+     * @param lesson lesson to convert
+     * @return JSON object
+     */
+    private static String toJson(Lesson lesson)
+    {
+        return "{\"title\":" + jsonString(lesson.getTitle())
+                + ",\"startDate\":\"" + lesson.getStartDate()
+                + "\",\"startTime\":\"" + lesson.getStartTime()
+                + "\",\"endDate\":\"" + lesson.getEndDate()
+                + "\",\"endTime\":\"" + lesson.getEndTime()
+                + "\",\"professor\":" + jsonString(lesson.getProfessor())
+                + ",\"room\":" + jsonString(lesson.getRoom()) + "}";
+    }
+
+    /**
+     * Creates a quoted and escaped JSON string
+     *
+     * @param value value to convert
+     * @return JSON string
+     */
+    static String jsonString(String value)
+    {
+        StringBuilder json = new StringBuilder("\"");
+
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+
+        return json.append('"').toString();
+    }
+
+    /**
+     * Identity of a lesson for the hash index: title, date, time, room and professor
+     */
+    private static final class LessonKey
+    {
+        private final String title;
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+        private final LocalTime startTime;
+        private final LocalTime endTime;
+        private final String room;
+        private final String professor;
+        private final int hash;
+
+        private LessonKey(Lesson lesson)
+        {
+            title = lesson.getTitle();
+            startDate = lesson.getStartDate();
+            endDate = lesson.getEndDate();
+            startTime = lesson.getStartTime();
+            endTime = lesson.getEndTime();
+            room = lesson.getRoom();
+            professor = lesson.getProfessor();
+            hash = Objects.hash(title, startDate, endDate, startTime, endTime, room, professor);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof LessonKey))
+                return false;
+
+            LessonKey other = (LessonKey) o;
+
+            return hash == other.hash && title.equals(other.title) && startDate.equals(other.startDate)
+                    && endDate.equals(other.endDate) && startTime.equals(other.startTime)
+                    && endTime.equals(other.endTime) && room.equals(other.room)
+                    && professor.equals(other.professor);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+
+/**
+ * Scanner for the fields of a rapla tooltip, working directly on the characters of the strings instead of regular
+ * expressions. The results are the same as with the regular expressions noted at the methods.
+ */
+public class LessonFieldScanner
+{
+    private LessonFieldScanner()
+    {
+    }
+
+    /**
+     * Weekday and time of a lesson
+     */
+    public static class DayTime
+    {
+        /**
+         * Weekday of the lesson, null if the German weekday token is unknown
+         */
+        private final DayOfWeek weekday;
+
+        /**
+         * Begin of the lesson
+         */
+        private final LocalTime timeFrom;
+
+        /**
+         * End of the lesson
+         */
+        private final LocalTime timeUntil;
+
+        private DayTime(DayOfWeek weekday, LocalTime timeFrom, LocalTime timeUntil)
+        {
+            this.weekday = weekday;
+            this.timeFrom = timeFrom;
+            this.timeUntil = timeUntil;
+        }
+
+        public DayOfWeek getWeekday()
+        {
+            return weekday;
+        }
+
+        public LocalTime getTimeFrom()
+        {
+            return timeFrom;
+        }
+
+        public LocalTime getTimeUntil()
+        {
+            return timeUntil;
+        }
+    }
+
+    /**
+     * Extracts weekday (German) and time of a lesson, e.g. out of "Mo 08:15-11:30 wöchentlich". Same as the first
+     * match of "([a-zA-Z]{2}).* ([0-9:]*)-([0-9:]*)".
+     *
+     * @param input string with weekday and time
+     * @return weekday and time or null if the string doesn't contain them
+     * @throws java.time.format.DateTimeParseException if a time has an invalid format
+     */
+    public static DayTime scanDayTime(String input)
+    {
+        int length = input.length();
+        int start = 0;
+
+        while (start + 1 < length) {
+            if (!isAsciiLetter(input.charAt(start)) || !isAsciiLetter(input.charAt(start + 1))) {
+                start++;
+                continue;
+            }
+
+            int lineEnd = start + 2;
+            while (lineEnd < length && !isLineTerminator(input.charAt(lineEnd)))
+                lineEnd++;
+
+            // last space within the line which is followed by a time and a hyphen
+            for (int space = lineEnd - 1; space >= start + 2; space--) {
+                if (input.charAt(space) != ' ')
+                    continue;
+
+                int hyphen = skipTimeCharacters(input, space + 1);
+                if (hyphen >= length || input.charAt(hyphen) != '-')
+                    continue;
+
+                int end = skipTimeCharacters(input, hyphen + 1);
+
+                return new DayTime(toDayOfWeek(input.charAt(start), input.charAt(start + 1)),
+                        parseTime(input, space + 1, hyphen), parseTime(input, hyphen + 1, end));
+            }
+
+            // no later start within the same line can match either
+            start = lineEnd + 1;
+        }
+
+        return null;
+    }
+
+    /**
+     * Extracts the room out of a string with multiple resources (persons, rooms, computers, etc.). Same as the first
+     * match of "(RB[^,]*)".
+     *
+     * @param input the resources string
+     * @return the room, if none found an empty string
+     */
+    public static String scanRoom(String input)
+    {
+        int start = input.indexOf("RB");
+
+        if (start < 0)
+            return "";
+
+        int end = input.indexOf(',', start);
+
+        return input.substring(start, end < 0 ? input.length() : end);
+    }
+
+    /**
+     * Extracts the professor out of a string in format "Surname, Prename" and turns it into "Prename Surname". Same
+     * as a match of "^([^,]*), ([^,]*)".
+     *
+     * @param input the professor string
+     * @return name of professor or empty string
+     */
+    public static String scanProfessor(String input)
+    {
+        int comma = input.indexOf(',');
+
+        if (comma < 0 || comma + 1 >= input.length() || input.charAt(comma + 1) != ' ')
+            return "";
+
+        int prenameEnd = input.indexOf(',', comma + 2);
+        if (prenameEnd < 0)
+            prenameEnd = input.length();
+
+        return new StringBuilder(prenameEnd - 1)
+                .append(input, comma + 2, prenameEnd)
+                .append(' ')
+                .append(input, 0, comma)
+                .toString();
+    }
+
+    /**
+     * Determines the weekday out of a German two letter weekday token
+     *
+     * @param first  first letter of the token
+     * @param second second letter of the token
+     * @return the weekday or null if the token is unknown
+     */
+    private static DayOfWeek toDayOfWeek(char first, char second)
+    {
+        switch (first) {
+            case 'M':
+                return second == 'o' ? DayOfWeek.MONDAY : second == 'i' ? DayOfWeek.WEDNESDAY : null;
+            case 'D':
+                return second == 'i' ? DayOfWeek.TUESDAY : second == 'o' ? DayOfWeek.THURSDAY : null;
+            case 'F':
+                return second == 'r' ? DayOfWeek.FRIDAY : null;
+            case 'S':
+                return second == 'a' ? DayOfWeek.SATURDAY : second == 'o' ? DayOfWeek.SUNDAY : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parses a time like "08:15" without creating a substring. Other formats are parsed by LocalTime.parse.
+     *
+     * @param input string containing the time
+     * @param start index of the first character of the time
+     * @param end   index after the last character of the time
+     * @return the parsed time
+     * @throws java.time.format.DateTimeParseException if the time has an invalid format
+     */
+    private static LocalTime parseTime(String input, int start, int end)
+    {
+        if (end - start == 5 && input.charAt(start + 2) == ':') {
+            int hour = digit(input.charAt(start)) * 10 + digit(input.charAt(start + 1));
+            int minute = digit(input.charAt(start + 3)) * 10 + digit(input.charAt(start + 4));
+
+            if (hour >= 0 && hour < 24 && minute >= 0 && minute < 60)
+                return LocalTime.of(hour, minute);
+        }
+
+        return LocalTime.parse(input.substring(start, end));
+    }
+
+    /**
+     * Skips all digits and colons
+     *
+     * @param input string to scan
+     * @param start index to start at
+     * @return index of the first character which is no digit or colon
+     */
+    private static int skipTimeCharacters(String input, int start)
+    {
+        int index = start;
+
+        while (index < input.length() && (isDigit(input.charAt(index)) || input.charAt(index) == ':'))
+            index++;
+
+        return index;
+    }
+
+    /**
+     * Converts a digit to its value
+     *
+     * @param c character to convert
+     * @return value of the digit, a large negative number if it's no digit
+     */
+    private static int digit(char c)
+    {
+        return isDigit(c) ? c - '0' : -1000;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAsciiLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == (char) 0x85 || c == (char) 0x2028 || c == (char) 0x2029;
+    }
+}
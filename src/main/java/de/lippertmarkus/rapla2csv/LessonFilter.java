@@ -0,0 +1,282 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Selects the lessons to extract by title, professor, room, weekday and time. The checks are split up, so the reader
+ * can reject a lesson as soon as the first non-matching field is known instead of extracting all fields first. Texts
+ * match if they're contained case-insensitively, e.g. "Wagner" matches the professor "Anna Wagner".
+ */
+public class LessonFilter
+{
+    /**
+     * Filter accepting all lessons
+     */
+    public static final LessonFilter ALL = new LessonFilter(null, null, null, null, null, null);
+
+    /**
+     * Lower case text the titles must contain, null for any title
+     */
+    private final String title;
+
+    /**
+     * Lower case text the professors must contain, null for any professor
+     */
+    private final String professor;
+
+    /**
+     * Lower case text the rooms must contain, null for any room
+     */
+    private final String room;
+
+    /**
+     * Weekdays the lessons must be on, null for any weekday
+     */
+    private final Set<DayOfWeek> weekdays;
+
+    /**
+     * Time the lessons must not start before, null for any time
+     */
+    private final LocalTime timeFrom;
+
+    /**
+     * Time the lessons must not end after, null for any time
+     */
+    private final LocalTime timeUntil;
+
+    /**
+     * Lower case ASCII words of all texts, which must be contained in the raw HTML of a matching tooltip
+     */
+    private final String[] rawWords;
+
+
+    /**
+     * Constructs a new filter, null accepts any value of a field
+     *
+     * @param title     text the titles must contain
+     * @param professor text the professors must contain, e.g. the surname
+     * @param room      text the rooms must contain
+     * @param weekdays  weekdays the lessons must be on
+     * @param timeFrom  time the lessons must not start before
+     * @param timeUntil time the lessons must not end after
+     */
+    public LessonFilter(String title, String professor, String room, Set<DayOfWeek> weekdays, LocalTime timeFrom,
+                        LocalTime timeUntil)
+    {
+        this.title = toLowerCase(title);
+        this.professor = toLowerCase(professor);
+        this.room = toLowerCase(room);
+        this.weekdays = weekdays == null ? null : EnumSet.copyOf(weekdays);
+        this.timeFrom = timeFrom;
+        this.timeUntil = timeUntil;
+
+        Set<String> words = new LinkedHashSet<>();
+        addAsciiWords(this.title, words);
+        addAsciiWords(this.professor, words);
+        addAsciiWords(this.room, words);
+        rawWords = words.toArray(new String[0]);
+    }
+
+    /**
+     * Parses a comma separated list of English weekdays, at least their first two letters, e.g. "mo,tu,friday"
+     *
+     * @param input list of weekdays
+     * @return the weekdays
+     * @throws IllegalArgumentException if a weekday is unknown
+     */
+    public static Set<DayOfWeek> parseWeekdays(String input)
+    {
+        Set<DayOfWeek> weekdays = EnumSet.noneOf(DayOfWeek.class);
+
+        for (String token : input.split(",")) {
+            String name = token.trim().toUpperCase(Locale.ROOT);
+            DayOfWeek weekday = null;
+
+            for (DayOfWeek candidate : DayOfWeek.values())
+                if (name.length() >= 2 && candidate.name().startsWith(name))
+                    weekday = candidate;
+
+            if (weekday == null)
+                throw new IllegalArgumentException("Unknown weekday '" + token.trim() + "'");
+
+            weekdays.add(weekday);
+        }
+
+        return weekdays;
+    }
+
+    /**
+     * Checks if the filter accepts all lessons
+     *
+     * @return true if no field is restricted
+     */
+    public boolean isEmpty()
+    {
+        return title == null && professor == null && room == null && weekdays == null && timeFrom == null
+                && timeUntil == null;
+    }
+
+    /**
+     * Cheap check of the raw HTML of a tooltip before it's parsed. Texts can only be contained in a field if their
+     * words are contained in the raw HTML. Only words of ASCII letters and digits are checked, as other characters
+     * may be written as entities, so a tooltip passing this check may still not match.
+     *
+     * @param rawTooltip HTML of the tooltip
+     * @return false if the lesson of the tooltip can't match
+     */
+    public boolean mayMatch(CharSequence rawTooltip)
+    {
+        for (String word : rawWords)
+            if (!containsIgnoreCase(rawTooltip, word))
+                return false;
+
+        return true;
+    }
+
+    public boolean matchesTitle(String title)
+    {
+        return contains(title, this.title);
+    }
+
+    public boolean matchesProfessor(String professor)
+    {
+        return contains(professor, this.professor);
+    }
+
+    public boolean matchesRoom(String room)
+    {
+        return contains(room, this.room);
+    }
+
+    /**
+     * Checks weekday and time of a lesson
+     *
+     * @param weekday   weekday of the lesson, may null
+     * @param startTime begin of the lesson, may null
+     * @param endTime   end of the lesson, may null
+     * @return true if the lesson is on one of the weekdays and within the time window
+     */
+    public boolean matchesDayTime(DayOfWeek weekday, LocalTime startTime, LocalTime endTime)
+    {
+        if (weekdays != null && (weekday == null || !weekdays.contains(weekday)))
+            return false;
+        if (timeFrom != null && (startTime == null || startTime.isBefore(timeFrom)))
+            return false;
+
+        return timeUntil == null || (endTime != null && !endTime.isAfter(timeUntil));
+    }
+
+    /**
+     * Checks all fields of an already extracted lesson, e.g. out of a snapshot
+     *
+     * @param lesson lesson to check
+     * @return true if the lesson matches
+     */
+    public boolean matches(Lesson lesson)
+    {
+        DayOfWeek weekday = lesson.getStartDate() == null ? null : lesson.getStartDate().getDayOfWeek();
+
+        return matchesTitle(lesson.getTitle()) && matchesDayTime(weekday, lesson.getStartTime(), lesson.getEndTime())
+                && matchesRoom(lesson.getRoom()) && matchesProfessor(lesson.getProfessor());
+    }
+
+    /**
+     * Checks if a field contains a text case-insensitively
+     *
+     * @param value value of the field, may null
+     * @param text  lower case text, null for any value
+     * @return true if the text is contained or no text is given
+     */
+    private static boolean contains(String value, String text)
+    {
+        return text == null || (value != null && value.toLowerCase(Locale.ROOT).contains(text));
+    }
+
+    /**
+     * Searches a lower case ASCII word in characters without creating a string of them
+     *
+     * @param characters characters to search in
+     * @param word       lower case word of ASCII letters and digits
+     * @return true if the word is contained ignoring case
+     */
+    private static boolean containsIgnoreCase(CharSequence characters, String word)
+    {
+        int last = characters.length() - word.length();
+
+        for (int start = 0; start <= last; start++) {
+            int matched = 0;
+
+            while (matched < word.length() && toLowerAscii(characters.charAt(start + matched)) == word.charAt(matched))
+                matched++;
+
+            if (matched == word.length())
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Describes the restricted fields, e.g. for identifying the extraction of a checkpoint journal
+     *
+     * @return the restricted fields and their values, empty if the filter accepts all lessons
+     */
+    @Override
+    public String toString()
+    {
+        String fields = (title != null ? "title=" + title + " " : "")
+                + (professor != null ? "prof=" + professor + " " : "")
+                + (room != null ? "room=" + room + " " : "")
+                + (weekdays != null ? "weekdays=" + weekdays + " " : "")
+                + (timeFrom != null ? "from=" + timeFrom + " " : "")
+                + (timeUntil != null ? "until=" + timeUntil : "");
+
+        return fields.trim();
+    }
+
+    /**
+     * Adds all runs of ASCII letters and digits of a text to a set
+     *
+     * @param text  lower case text, may null
+     * @param words set to add the words to
+     */
+    private static void addAsciiWords(String text, Set<String> words)
+    {
+        if (text == null)
+            return;
+
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && isAsciiLetterOrDigit(text.charAt(i));
+
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static String toLowerCase(String text)
+    {
+        return text == null ? null : text.toLowerCase(Locale.ROOT);
+    }
+
+    private static char toLowerAscii(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,310 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Index of the time intervals of lessons grouped by a resource, e.g. the room or the professor. The intervals of every
+ * resource are sorted by start, together with the maximum end of all intervals up to each position, so the lessons
+ * taking place at a time are found by a binary search and a short scan back. Overlaps are found by a sweep over the
+ * sorted intervals, which only compares lessons that actually overlap instead of all pairs.
+ */
+public class LessonIntervalIndex
+{
+    /**
+     * Minutes of a day, for converting dates and times into minutes since 1970-01-01
+     */
+    private static final long MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * Indexed lessons
+     */
+    private List<Lesson> lessons;
+
+    /**
+     * Sorted intervals by resource, in order of the resource names
+     */
+    private Map<String, Intervals> intervalsByResource = new TreeMap<>();
+
+    /**
+     * Counter for lessons without resource, date or time, which aren't indexed
+     */
+    private int countUnindexedLessons = 0;
+
+
+    /**
+     * Builds the index of lessons
+     *
+     * @param lessons  lessons to index
+     * @param resource function getting the resource of a lesson, lessons with null or empty resource aren't indexed
+     */
+    public LessonIntervalIndex(List<Lesson> lessons, Function<Lesson, String> resource)
+    {
+        this.lessons = lessons;
+        Map<String, List<Integer>> positionsByResource = new TreeMap<>();
+
+        for (int i = 0; i < lessons.size(); i++) {
+            Lesson lesson = lessons.get(i);
+            String name = resource.apply(lesson);
+
+            if (name == null || name.isEmpty() || getStart(lesson) == null || getEnd(lesson) == null) {
+                countUnindexedLessons++;
+                continue;
+            }
+
+            positionsByResource.computeIfAbsent(name, key -> new ArrayList<>()).add(i);
+        }
+
+        positionsByResource.forEach((name, positions) -> intervalsByResource.put(name, new Intervals(positions)));
+    }
+
+    /**
+     * Gets the beginning of a lesson in minutes since 1970-01-01
+     *
+     * @param lesson the lesson
+     * @return the minute or null if date or time is missing
+     */
+    private static Long getStart(Lesson lesson)
+    {
+        return toMinutes(lesson.getStartDate(), lesson.getStartTime());
+    }
+
+    /**
+     * Gets the end of a lesson in minutes since 1970-01-01, lessons without end date end on their start date
+     *
+     * @param lesson the lesson
+     * @return the minute or null if date or time is missing
+     */
+    private static Long getEnd(Lesson lesson)
+    {
+        LocalDate endDate = lesson.getEndDate() != null ? lesson.getEndDate() : lesson.getStartDate();
+
+        return toMinutes(endDate, lesson.getEndTime());
+    }
+
+    private static Long toMinutes(LocalDate date, LocalTime time)
+    {
+        if (date == null || time == null)
+            return null;
+
+        return date.toEpochDay() * MINUTES_PER_DAY + time.getHour() * 60 + time.getMinute();
+    }
+
+    /**
+     * Gets the lessons of a resource taking place at a time, i.e. started at or before the time and not ended yet
+     *
+     * @param name name of the resource
+     * @param time the time
+     * @return lessons in order of their start, empty for an unknown resource
+     */
+    public List<Lesson> getLessonsAt(String name, LocalDateTime time)
+    {
+        Intervals intervals = intervalsByResource.get(name);
+
+        if (intervals == null)
+            return Collections.emptyList();
+
+        long minute = toMinutes(time.toLocalDate(), time.toLocalTime());
+        List<Lesson> result = new ArrayList<>();
+
+        // all intervals starting after the time are behind the last start at or before it, and the scan back can stop
+        // as soon as no earlier interval ends after the time
+        for (int i = upperBound(intervals.starts, minute) - 1; i >= 0 && intervals.maxEnds[i] > minute; i--)
+            if (intervals.ends[i] > minute)
+                result.add(lessons.get(intervals.positions[i]));
+
+        Collections.reverse(result);
+
+        return result;
+    }
+
+    /**
+     * Finds the first position with a value greater than the key
+     *
+     * @param values sorted values
+     * @param key    the key
+     * @return position or length of the values if there is none
+     */
+    private static int upperBound(long[] values, long key)
+    {
+        int low = 0;
+        int high = values.length;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (values[middle] <= key)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    /**
+     * Finds all pairs of overlapping lessons of the same resource. Lessons touching each other, e.g. one ending at
+     * 10:00 and the next starting at 10:00, don't overlap. Lessons with the same title, start and end are the same
+     * lesson listed twice, e.g. in several calendars, and aren't reported either.
+     *
+     * @return overlaps by resource name, then by start of the later and of the earlier lesson
+     */
+    public List<Overlap> findOverlaps()
+    {
+        List<Overlap> overlaps = new ArrayList<>();
+
+        for (Map.Entry<String, Intervals> entry : intervalsByResource.entrySet()) {
+            Intervals intervals = entry.getValue();
+
+            // positions of the intervals started so far which may still overlap following ones, by their end
+            PriorityQueue<Integer> running = new PriorityQueue<>(
+                    (a, b) -> Long.compare(intervals.ends[a], intervals.ends[b]));
+
+            for (int i = 0; i < intervals.positions.length; i++) {
+                while (!running.isEmpty() && intervals.ends[running.peek()] <= intervals.starts[i])
+                    running.poll();
+
+                Lesson lesson = lessons.get(intervals.positions[i]);
+
+                // sorted positions, so the overlaps are reported in order of the earlier lessons' start
+                for (int j : running.stream().mapToInt(Integer::intValue).sorted().toArray()) {
+                    Lesson earlier = lessons.get(intervals.positions[j]);
+
+                    if (!isSameLesson(earlier, lesson, intervals, i, j))
+                        overlaps.add(new Overlap(entry.getKey(), earlier, lesson));
+                }
+
+                running.add(i);
+            }
+        }
+
+        return overlaps;
+    }
+
+    private static boolean isSameLesson(Lesson first, Lesson second, Intervals intervals, int i, int j)
+    {
+        return intervals.starts[i] == intervals.starts[j] && intervals.ends[i] == intervals.ends[j]
+                && first.getTitle() != null && first.getTitle().equals(second.getTitle());
+    }
+
+    /**
+     * Gets the names of all indexed resources
+     *
+     * @return sorted resource names
+     */
+    public Set<String> getResources()
+    {
+        return Collections.unmodifiableSet(intervalsByResource.keySet());
+    }
+
+    public int getCountUnindexedLessons()
+    {
+        return countUnindexedLessons;
+    }
+
+    /**
+     * Intervals of the lessons of one resource sorted by start
+     */
+    private class Intervals
+    {
+        /**
+         * Positions of the lessons in the indexed list
+         */
+        private final int[] positions;
+
+        /**
+         * Starts of the intervals in minutes since 1970-01-01, ascending
+         */
+        private final long[] starts;
+
+        /**
+         * Ends of the intervals in minutes since 1970-01-01
+         */
+        private final long[] ends;
+
+        /**
+         * Maximum end of all intervals up to each position
+         */
+        private final long[] maxEnds;
+
+        private Intervals(List<Integer> lessonPositions)
+        {
+            int size = lessonPositions.size();
+            long[][] intervals = new long[size][];
+
+            for (int i = 0; i < size; i++) {
+                Lesson lesson = lessons.get(lessonPositions.get(i));
+                intervals[i] = new long[]{getStart(lesson), getEnd(lesson), lessonPositions.get(i)};
+            }
+
+            // sorted by start, then by end and position, so the order is the same in every run
+            Arrays.sort(intervals, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                    : a[1] != b[1] ? Long.compare(a[1], b[1]) : Long.compare(a[2], b[2]));
+
+            positions = new int[size];
+            starts = new long[size];
+            ends = new long[size];
+            maxEnds = new long[size];
+
+            for (int i = 0; i < size; i++) {
+                starts[i] = intervals[i][0];
+                ends[i] = intervals[i][1];
+                positions[i] = (int) intervals[i][2];
+                maxEnds[i] = i == 0 ? ends[i] : Math.max(maxEnds[i - 1], ends[i]);
+            }
+        }
+    }
+
+    /**
+     * Two lessons of the same resource overlapping in time
+     */
+    public static class Overlap
+    {
+        /**
+         * Name of the resource, e.g. the room
+         */
+        private final String resource;
+
+        /**
+         * Lesson starting first
+         */
+        private final Lesson first;
+
+        /**
+         * Lesson starting at the same time or later
+         */
+        private final Lesson second;
+
+        private Overlap(String resource, Lesson first, Lesson second)
+        {
+            this.resource = resource;
+            this.first = first;
+            this.second = second;
+        }
+
+        public String getResource()
+        {
+            return resource;
+        }
+
+        public Lesson getFirst()
+        {
+            return first;
+        }
+
+        public Lesson getSecond()
+        {
+            return second;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges CSV files with lessons sorted by date, e.g. the parts of a sharded export, into one sequence of lessons in
+ * date order. Only the current lesson of every file is kept in memory. Lessons at the same time are passed in the
+ * order of the files, so the result is the same in every run.
+ */
+public class LessonMerger
+{
+    /**
+     * Order of the lessons in sorted exports: by start date and start time
+     */
+    public static final Comparator<Lesson> ORDER = Comparator.comparing(Lesson::getStartDate)
+            .thenComparing(Lesson::getStartTime, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+
+    private LessonMerger()
+    {
+    }
+
+    /**
+     * Merges sorted CSV files and passes their lessons in date order to a sink
+     *
+     * @param files CSV files sorted by ORDER, may be compressed with gzip
+     * @param sink  receiver of the merged lessons
+     * @throws IOException if a file couldn't be read or isn't sorted
+     */
+    public static void merge(List<Path> files, LessonSink sink) throws IOException
+    {
+        merge(files, ORDER, sink);
+    }
+
+    /**
+     * Merges CSV files sorted by another order and passes their lessons in this order to a sink
+     *
+     * @param files CSV files sorted by the order, may be compressed with gzip
+     * @param order order of the lessons in the files
+     * @param sink  receiver of the merged lessons
+     * @throws IOException if a file couldn't be read or isn't sorted
+     */
+    public static void merge(List<Path> files, Comparator<Lesson> order, LessonSink sink) throws IOException
+    {
+        List<Cursor> cursors = new ArrayList<>();
+
+        // the position of the file breaks ties, as the priority queue itself isn't stable
+        Comparator<Cursor> cursorOrder = Comparator.comparing((Cursor cursor) -> cursor.lesson, order)
+                .thenComparingInt(cursor -> cursor.position);
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(files.size(), 1), cursorOrder);
+
+        try {
+            for (Path file : files) {
+                Cursor cursor = new Cursor(new CsvLessonReader(file), file, order, cursors.size());
+                cursors.add(cursor);
+
+                if (cursor.advance())
+                    queue.add(cursor);
+            }
+
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                sink.accept(cursor.lesson);
+
+                if (cursor.advance())
+                    queue.add(cursor);
+            }
+
+            sink.flush();
+        } finally {
+            for (Cursor cursor : cursors)
+                cursor.reader.close();
+        }
+    }
+
+    /**
+     * Current position within one of the merged files
+     */
+    private static class Cursor
+    {
+        private final CsvLessonReader reader;
+
+        /**
+         * Merged file, for error messages
+         */
+        private final Path file;
+
+        /**
+         * Order of the lessons in the file
+         */
+        private final Comparator<Lesson> order;
+
+        /**
+         * Position of the file among the merged files
+         */
+        private final int position;
+
+        /**
+         * Lesson which is passed next out of this file, null at the end of the file
+         */
+        private Lesson lesson;
+
+        private Cursor(CsvLessonReader reader, Path file, Comparator<Lesson> order, int position)
+        {
+            this.reader = reader;
+            this.file = file;
+            this.order = order;
+            this.position = position;
+        }
+
+        /**
+         * Reads the next lesson of the file
+         *
+         * @return false at the end of the file
+         * @throws IOException if the file couldn't be read or the lesson is before the previous one
+         */
+        private boolean advance() throws IOException
+        {
+            Lesson previous = lesson;
+            lesson = reader.read();
+
+            if (lesson != null && previous != null && order.compare(lesson, previous) < 0)
+                throw new IOException(file + " isn't sorted, lesson '" + lesson.getTitle() + "' on "
+                        + lesson.getStartDate() + " follows a later one");
+
+            return lesson != null;
+        }
+    }
+}
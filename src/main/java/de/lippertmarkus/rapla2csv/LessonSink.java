@@ -0,0 +1,26 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+
+/**
+ * Receiver of extracted lessons, which are passed week by week in date order while the extraction is still running
+ */
+public interface LessonSink
+{
+    /**
+     * Receives an extracted lesson
+     *
+     * @param lesson the extracted lesson
+     * @throws IOException if the lesson couldn't be processed
+     */
+    void accept(Lesson lesson) throws IOException;
+
+    /**
+     * Called after all lessons of a week were passed, e.g. for making written lessons visible
+     *
+     * @throws IOException if the lessons couldn't be flushed
+     */
+    default void flush() throws IOException
+    {
+    }
+}
@@ -0,0 +1,330 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Binary snapshot of extracted lessons, which is memory-mapped when read, so even large extractions are available
+ * immediately without parsing. Lessons are read directly out of the mapped file on access.
+ * <p>
+ * Format (big endian): a header with magic "R2CS", format version, number of lessons, number of strings and offset of
+ * the string table, followed by one fixed-width record per lesson and the string table. A record contains the string
+ * ids of title, professor and room, the start date as epoch day, the days until the end date and the start and end
+ * time as minutes of the day. The string table contains the end offsets of all strings followed by their UTF-8 bytes.
+ */
+public class LessonSnapshot extends AbstractList<Lesson> implements RandomAccess
+{
+    /**
+     * Magic number at the beginning of every snapshot file
+     */
+    private static final int MAGIC = 0x52324353; // "R2CS"
+
+    /**
+     * Version of the format written by this class
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Length of the header in bytes
+     */
+    private static final int HEADER_LENGTH = 32;
+
+    /**
+     * Length of a lesson record in bytes
+     */
+    private static final int RECORD_LENGTH = 24;
+
+    /**
+     * Id of null strings and value of null times
+     */
+    private static final int NULL = -1;
+
+    /**
+     * Value of null dates, as -1 is a valid epoch day
+     */
+    private static final int NULL_DATE = Integer.MIN_VALUE;
+
+    /**
+     * Number of minutes of a day, times are stored as minute of the day below it
+     */
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * Content of the snapshot file
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Number of lessons in the snapshot
+     */
+    private int size;
+
+    /**
+     * Offset of the string table
+     */
+    private int stringTableOffset;
+
+    /**
+     * Already decoded strings, null if not decoded yet
+     */
+    private String[] strings;
+
+
+    /**
+     * Constructs a new snapshot out of the content of a snapshot file
+     *
+     * @param buffer content of the file
+     * @throws IOException if the content is no valid snapshot
+     */
+    private LessonSnapshot(ByteBuffer buffer) throws IOException
+    {
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a lesson snapshot");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4));
+
+        this.buffer = buffer;
+        size = buffer.getInt(8);
+        int countStrings = buffer.getInt(12);
+        long tableOffset = buffer.getLong(16);
+
+        // check the header before allocating, so a damaged count can't exhaust the memory
+        if (size < 0 || tableOffset != HEADER_LENGTH + (long) size * RECORD_LENGTH || tableOffset > buffer.capacity()
+                || countStrings < 0 || countStrings > (buffer.capacity() - tableOffset) / 4 - 1)
+            throw new IOException("Corrupt lesson snapshot");
+
+        strings = new String[countStrings];
+        stringTableOffset = (int) tableOffset;
+        validate();
+    }
+
+    /**
+     * Checks that all string ids and times of the records and all offsets of the string table are valid, so a damaged
+     * file is rejected when it's opened instead of failing on access of a lesson
+     *
+     * @throws IOException if the content is no valid snapshot
+     */
+    private void validate() throws IOException
+    {
+        for (int record = HEADER_LENGTH; record < stringTableOffset; record += RECORD_LENGTH) {
+            for (int field = 0; field < 12; field += 4) {
+                int id = buffer.getInt(record + field);
+
+                if (id < NULL || id >= strings.length)
+                    throw new IOException("Corrupt lesson snapshot: string id " + id + " of " + strings.length);
+            }
+
+            for (int field = 20; field < RECORD_LENGTH; field += 2) {
+                short minuteOfDay = buffer.getShort(record + field);
+
+                if (minuteOfDay < NULL || minuteOfDay >= MINUTES_PER_DAY)
+                    throw new IOException("Corrupt lesson snapshot: minute of day " + minuteOfDay);
+            }
+        }
+
+        long dataLength = buffer.capacity() - (stringTableOffset + 4L * (strings.length + 1));
+        int previousEnd = 0;
+
+        for (int i = 0; i <= strings.length; i++) {
+            int end = buffer.getInt(stringTableOffset + 4 * i);
+
+            if (end < previousEnd || end > dataLength)
+                throw new IOException("Corrupt lesson snapshot: string offset " + end);
+
+            previousEnd = end;
+        }
+    }
+
+    /**
+     * Maps a snapshot file into memory
+     *
+     * @param file snapshot file
+     * @return the lessons of the snapshot
+     * @throws IOException if the file couldn't be read or is no valid snapshot
+     */
+    public static LessonSnapshot open(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot is too large");
+
+            // the mapping stays valid after closing the channel
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            return new LessonSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Writes lessons into a snapshot file. The lessons are written into a temporary file next to it, which replaces the
+     * snapshot file when it's complete, so readers never see a half written snapshot and a failed write keeps the
+     * previous one.
+     *
+     * @param lessons lessons to write
+     * @param file    snapshot file to create or replace
+     * @throws IOException if the file couldn't be written
+     */
+    public static void write(List<Lesson> lessons, Path file) throws IOException
+    {
+        Path directory = file.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try {
+            writeContent(lessons, tempFile);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Writes the content of a snapshot
+     *
+     * @param lessons lessons to write
+     * @param file    file to write the content into
+     * @throws IOException if the file couldn't be written
+     */
+    private static void writeContent(List<Lesson> lessons, Path file) throws IOException
+    {
+        List<byte[]> strings = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(lessons.size());
+            out.writeInt(0); // number of strings, known after the records
+            out.writeLong(HEADER_LENGTH + (long) lessons.size() * RECORD_LENGTH);
+            out.writeLong(0); // reserved
+
+            for (Lesson lesson : lessons) {
+                out.writeInt(encode(lesson.getTitle(), strings, stringIds));
+                out.writeInt(encode(lesson.getProfessor(), strings, stringIds));
+                out.writeInt(encode(lesson.getRoom(), strings, stringIds));
+                out.writeInt(lesson.getStartDate() == null ? NULL_DATE : (int) lesson.getStartDate().toEpochDay());
+                out.writeInt(lesson.getStartDate() == null || lesson.getEndDate() == null ? 0
+                        : (int) (lesson.getEndDate().toEpochDay() - lesson.getStartDate().toEpochDay()));
+                out.writeShort(toMinuteOfDay(lesson.getStartTime()));
+                out.writeShort(toMinuteOfDay(lesson.getEndTime()));
+            }
+
+            // end offsets of all strings, so the start of a string is the end of the previous one
+            int offset = 0;
+            out.writeInt(0);
+            for (byte[] string : strings) {
+                offset += string.length;
+                out.writeInt(offset);
+            }
+
+            for (byte[] string : strings)
+                out.write(string);
+        }
+
+        // fill in the number of strings and write the file to disk before it replaces the snapshot
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer count = ByteBuffer.allocate(4).putInt(0, strings.size());
+            channel.write(count, 12);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Gets the id of a string in the string table, adding it to the table if it's new
+     *
+     * @param value     string to encode, may null
+     * @param strings   UTF-8 bytes of the strings in the table
+     * @param stringIds ids of the strings in the table
+     * @return id of the string
+     */
+    private static int encode(String value, List<byte[]> strings, Map<String, Integer> stringIds)
+    {
+        if (value == null)
+            return NULL;
+
+        return stringIds.computeIfAbsent(value, key -> {
+            strings.add(key.getBytes(StandardCharsets.UTF_8));
+            return strings.size() - 1;
+        });
+    }
+
+    private static int toMinuteOfDay(LocalTime time)
+    {
+        return time == null ? NULL : time.getHour() * 60 + time.getMinute();
+    }
+
+    private static LocalTime toTime(short minuteOfDay)
+    {
+        return minuteOfDay == NULL ? null : LocalTime.of(minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    @Override
+    public Lesson get(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+        int record = HEADER_LENGTH + index * RECORD_LENGTH;
+        int startDay = buffer.getInt(record + 12);
+        LocalDate startDate = startDay == NULL_DATE ? null : LocalDate.ofEpochDay(startDay);
+        LocalDate endDate = startDate == null ? null : startDate.plusDays(buffer.getInt(record + 16));
+
+        return new Lesson(getString(buffer.getInt(record)), startDate, endDate,
+                toTime(buffer.getShort(record + 20)), toTime(buffer.getShort(record + 22)),
+                getString(buffer.getInt(record + 4)), getString(buffer.getInt(record + 8)));
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Gets a string out of the string table, decoding it on the first access
+     *
+     * @param id id of the string
+     * @return the string or null for the null id
+     */
+    private String getString(int id)
+    {
+        if (id == NULL)
+            return null;
+
+        String string = strings[id];
+
+        if (string == null) {
+            int offsets = stringTableOffset;
+            int data = offsets + 4 * (strings.length + 1);
+            int start = buffer.getInt(offsets + 4 * id);
+            int end = buffer.getInt(offsets + 4 * (id + 1));
+            byte[] bytes = new byte[end - start];
+
+            // absolute read without changing the position, so several threads can read
+            ByteBuffer view = buffer.duplicate();
+            view.position(data + start);
+            view.get(bytes);
+
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = string;
+        }
+
+        return string;
+    }
+}
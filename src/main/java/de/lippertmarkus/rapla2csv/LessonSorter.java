@@ -0,0 +1,227 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sorts lessons arriving in any order, e.g. from several calendars, within a memory budget. Lessons are collected in
+ * memory until their estimated size exceeds the budget, then they're sorted and written as a run to a temporary CSV
+ * file. Afterwards, the runs are merged with LessonMerger, so the sorted lessons are passed on one at a time without
+ * holding all of them in memory.
+ */
+public class LessonSorter implements LessonSink, Closeable
+{
+    /**
+     * Order of the sorted lessons: by start date, start time and title
+     */
+    public static final Comparator<Lesson> ORDER = LessonMerger.ORDER
+            .thenComparing(Lesson::getTitle, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    /**
+     * Maximum number of runs merged at once, more runs are merged in several passes to limit the open files
+     */
+    private static final int MAX_MERGED_RUNS = 64;
+
+    /**
+     * Estimated heap size of a lesson without the characters of its strings in bytes: the lesson, its dates, times and
+     * strings with their headers and the reference in the buffer
+     */
+    private static final int LESSON_SIZE = 280;
+
+    /**
+     * Maximum estimated size of the lessons kept in memory in bytes
+     */
+    private long memoryBudget;
+
+    /**
+     * Directory the temporary directory for the runs is created in
+     */
+    private Path directory;
+
+    /**
+     * Temporary directory of the runs, null until the first run is written
+     */
+    private Path runDirectory;
+
+    /**
+     * Sorted run files in the order they were written
+     */
+    private List<Path> runs = new ArrayList<>();
+
+    /**
+     * Lessons which weren't written to a run yet
+     */
+    private List<Lesson> buffer = new ArrayList<>();
+
+    /**
+     * Estimated size of the buffered lessons in bytes
+     */
+    private long bufferSize = 0;
+
+    /**
+     * Counter for all received lessons
+     */
+    private int countLessons = 0;
+
+    /**
+     * Counter for all runs written, including those of merge passes
+     */
+    private int countRuns = 0;
+
+
+    /**
+     * Constructs a new sorter
+     *
+     * @param memoryBudget maximum estimated size of the lessons kept in memory in bytes
+     * @param directory    directory for the temporary run files, e.g. next to the output file
+     */
+    public LessonSorter(long memoryBudget, Path directory)
+    {
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+    }
+
+    @Override
+    public void accept(Lesson lesson) throws IOException
+    {
+        buffer.add(lesson);
+        bufferSize += estimateSize(lesson);
+        countLessons++;
+
+        if (bufferSize > memoryBudget)
+            spill();
+    }
+
+    /**
+     * Estimates the heap size of a lesson
+     *
+     * @param lesson the lesson
+     * @return size in bytes
+     */
+    private static long estimateSize(Lesson lesson)
+    {
+        return LESSON_SIZE + 2L * (length(lesson.getTitle()) + length(lesson.getProfessor())
+                + length(lesson.getRoom()));
+    }
+
+    private static int length(String value)
+    {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Sorts the buffered lessons and writes them as a new run
+     *
+     * @throws IOException if the run couldn't be written
+     */
+    private void spill() throws IOException
+    {
+        buffer.sort(ORDER);
+
+        Path run = newRunFile();
+
+        try (OutputStream out = Files.newOutputStream(run); CsvLessonWriter writer = new CsvLessonWriter(out)) {
+            for (Lesson lesson : buffer)
+                writer.accept(lesson);
+        }
+
+        runs.add(run);
+        buffer = new ArrayList<>();
+        bufferSize = 0;
+    }
+
+    /**
+     * Creates the file for a new run
+     *
+     * @return path of the run file
+     * @throws IOException if the temporary directory couldn't be created
+     */
+    private Path newRunFile() throws IOException
+    {
+        if (runDirectory == null)
+            runDirectory = Files.createTempDirectory(directory, ".rapla2csv-runs");
+
+        return runDirectory.resolve("run-" + ++countRuns + ".csv");
+    }
+
+    /**
+     * Passes all received lessons in sorted order to a sink. Lessons sorting equal are passed in the order they were
+     * received.
+     *
+     * @param sink receiver of the sorted lessons
+     * @throws IOException if a run couldn't be written or read or the sink failed
+     */
+    public void writeSorted(LessonSink sink) throws IOException
+    {
+        if (runs.isEmpty()) {
+            buffer.sort(ORDER);
+
+            for (Lesson lesson : buffer)
+                sink.accept(lesson);
+
+            sink.flush();
+            return;
+        }
+
+        if (!buffer.isEmpty())
+            spill();
+
+        while (runs.size() > MAX_MERGED_RUNS)
+            mergeRuns();
+
+        LessonMerger.merge(runs, ORDER, sink);
+    }
+
+    /**
+     * Merges every MAX_MERGED_RUNS runs into one run. The merged runs keep their order, so lessons sorting equal stay
+     * in the order they were received.
+     *
+     * @throws IOException if a run couldn't be written or read
+     */
+    private void mergeRuns() throws IOException
+    {
+        List<Path> mergedRuns = new ArrayList<>();
+
+        for (int i = 0; i < runs.size(); i += MAX_MERGED_RUNS) {
+            List<Path> group = runs.subList(i, Math.min(i + MAX_MERGED_RUNS, runs.size()));
+            Path run = newRunFile();
+
+            try (OutputStream out = Files.newOutputStream(run); CsvLessonWriter writer = new CsvLessonWriter(out)) {
+                LessonMerger.merge(group, ORDER, writer);
+            }
+
+            for (Path mergedRun : group)
+                Files.delete(mergedRun);
+
+            mergedRuns.add(run);
+        }
+
+        runs = mergedRuns;
+    }
+
+    public int getCountLessons()
+    {
+        return countLessons;
+    }
+
+    public int getCountRuns()
+    {
+        return countRuns;
+    }
+
+    /**
+     * Deletes the temporary run files
+     */
+    @Override
+    public void close()
+    {
+        if (runDirectory != null)
+            ShardedExport.deleteParts(runDirectory);
+    }
+}
@@ -0,0 +1,278 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact list of lessons. Instead of one object per lesson with its own strings, dates and times, the fields of all
+ * lessons are kept in primitive arrays: titles, professors and rooms as ids into a dictionary, as they repeat every
+ * week, dates as epoch days and times as minutes of the day (rapla shows no seconds). Lesson objects are created on
+ * every access, so changes to them don't change the store, use set to replace a lesson.
+ * <p>
+ * The store isn't thread safe while lessons are added, but can be read by several threads afterwards.
+ */
+public class LessonStore extends AbstractList<Lesson> implements RandomAccess
+{
+    /**
+     * Id of null strings and value of null times
+     */
+    private static final int NULL = -1;
+
+    /**
+     * Value of null dates, as -1 is a valid epoch day
+     */
+    private static final int NULL_DATE = Integer.MIN_VALUE;
+
+    /**
+     * Distinct titles, professors and rooms, the index is their id
+     */
+    private List<String> dictionary = new ArrayList<>();
+
+    /**
+     * Ids of the strings in the dictionary
+     */
+    private Map<String, Integer> dictionaryIds = new HashMap<>();
+
+    /**
+     * Dictionary ids of the titles
+     */
+    private int[] titles;
+
+    /**
+     * Dictionary ids of the professors
+     */
+    private int[] professors;
+
+    /**
+     * Dictionary ids of the rooms
+     */
+    private int[] rooms;
+
+    /**
+     * Start dates as days since 1970-01-01
+     */
+    private int[] startDays;
+
+    /**
+     * Days between start and end date, null as long as all lessons end on their start date
+     */
+    private int[] durationDays;
+
+    /**
+     * Start times as minutes of the day
+     */
+    private short[] startMinutes;
+
+    /**
+     * End times as minutes of the day
+     */
+    private short[] endMinutes;
+
+    /**
+     * Number of lessons in the store
+     */
+    private int size = 0;
+
+
+    /**
+     * Constructs an empty store
+     */
+    public LessonStore()
+    {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty store with space for the given number of lessons
+     *
+     * @param capacity number of lessons which can be added without growing
+     */
+    public LessonStore(int capacity)
+    {
+        titles = new int[capacity];
+        professors = new int[capacity];
+        rooms = new int[capacity];
+        startDays = new int[capacity];
+        startMinutes = new short[capacity];
+        endMinutes = new short[capacity];
+    }
+
+    @Override
+    public Lesson get(int index)
+    {
+        checkIndex(index);
+
+        LocalDate startDate = toDate(startDays[index]);
+        LocalDate endDate = durationDays == null || startDate == null
+                ? startDate : startDate.plusDays(durationDays[index]);
+
+        return new Lesson(lookup(titles[index]), startDate, endDate, toTime(startMinutes[index]),
+                toTime(endMinutes[index]), lookup(professors[index]), lookup(rooms[index]));
+    }
+
+    @Override
+    public Lesson set(int index, Lesson lesson)
+    {
+        Lesson previous = get(index);
+        store(index, lesson);
+
+        return previous;
+    }
+
+    @Override
+    public boolean add(Lesson lesson)
+    {
+        if (size == titles.length)
+            grow();
+
+        store(size++, lesson);
+        modCount++;
+
+        return true;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public void clear()
+    {
+        size = 0;
+        durationDays = null;
+        dictionary.clear();
+        dictionaryIds.clear();
+        modCount++;
+    }
+
+    /**
+     * Shrinks the arrays to the number of lessons to free unused memory, e.g. before keeping the store for long
+     */
+    public void trimToSize()
+    {
+        resize(size);
+    }
+
+    /**
+     * Gets the number of distinct titles, professors and rooms of all lessons
+     *
+     * @return size of the dictionary
+     */
+    public int getDictionarySize()
+    {
+        return dictionary.size();
+    }
+
+    /**
+     * Writes the fields of a lesson into the arrays
+     *
+     * @param index  position of the lesson
+     * @param lesson lesson to store
+     */
+    private void store(int index, Lesson lesson)
+    {
+        titles[index] = encode(lesson.getTitle());
+        professors[index] = encode(lesson.getProfessor());
+        rooms[index] = encode(lesson.getRoom());
+        startDays[index] = fromDate(lesson.getStartDate());
+        startMinutes[index] = fromTime(lesson.getStartTime());
+        endMinutes[index] = fromTime(lesson.getEndTime());
+
+        int duration = lesson.getStartDate() != null && lesson.getEndDate() != null
+                ? (int) (lesson.getEndDate().toEpochDay() - lesson.getStartDate().toEpochDay()) : 0;
+
+        if (duration != 0 && durationDays == null)
+            durationDays = new int[titles.length];
+
+        if (durationDays != null)
+            durationDays[index] = duration;
+    }
+
+    /**
+     * Gets the dictionary id of a string, adding it to the dictionary if it's new
+     *
+     * @param value string to encode, may null
+     * @return id of the string
+     */
+    private int encode(String value)
+    {
+        if (value == null)
+            return NULL;
+
+        Integer id = dictionaryIds.get(value);
+
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.add(value);
+            dictionaryIds.put(value, id);
+        }
+
+        return id;
+    }
+
+    private String lookup(int id)
+    {
+        return id == NULL ? null : dictionary.get(id);
+    }
+
+    private static int fromDate(LocalDate date)
+    {
+        return date == null ? NULL_DATE : (int) date.toEpochDay();
+    }
+
+    private static LocalDate toDate(int epochDay)
+    {
+        return epochDay == NULL_DATE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+
+    private static short fromTime(LocalTime time)
+    {
+        return time == null ? NULL : (short) (time.getHour() * 60 + time.getMinute());
+    }
+
+    private static LocalTime toTime(short minuteOfDay)
+    {
+        return minuteOfDay == NULL ? null : LocalTime.of(minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    /**
+     * Grows the arrays by half of their size
+     */
+    private void grow()
+    {
+        resize(Math.max(titles.length + (titles.length >> 1), 16));
+    }
+
+    /**
+     * Changes the length of all arrays
+     *
+     * @param capacity new length of the arrays
+     */
+    private void resize(int capacity)
+    {
+        titles = Arrays.copyOf(titles, capacity);
+        professors = Arrays.copyOf(professors, capacity);
+        rooms = Arrays.copyOf(rooms, capacity);
+        startDays = Arrays.copyOf(startDays, capacity);
+        startMinutes = Arrays.copyOf(startMinutes, capacity);
+        endMinutes = Arrays.copyOf(endMinutes, capacity);
+
+        if (durationDays != null)
+            durationDays = Arrays.copyOf(durationDays, capacity);
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
@@ -0,0 +1,203 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Harness driving a RaplaReader against a rapla server and measuring the throughput and the latency of the page
+ * requests. Without a given rapla link, a FakeRaplaServer is started for the test.
+ */
+public class LoadTest
+{
+    /**
+     * Begin of the extraction range
+     */
+    private LocalDate dateFrom;
+
+    /**
+     * End of the extraction range
+     */
+    private LocalDate dateUntil;
+
+    /**
+     * Number of pages requested at the same time
+     */
+    private int parallelism;
+
+    /**
+     * Latencies of all page requests in nanoseconds
+     */
+    private List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * View of the requested rapla web pages
+     */
+    private CalendarView view = CalendarView.AUTO;
+
+    /**
+     * Selection of the lessons to extract
+     */
+    private LessonFilter filter = LessonFilter.ALL;
+
+
+    /**
+     * Constructs a new load test
+     *
+     * @param from        begin of the extraction range
+     * @param until       end of the extraction range
+     * @param parallelism number of pages requested at the same time
+     */
+    public LoadTest(LocalDate from, LocalDate until, int parallelism)
+    {
+        this.dateFrom = from;
+        this.dateUntil = until;
+        this.parallelism = parallelism;
+    }
+
+    public void setView(CalendarView view)
+    {
+        this.view = view;
+    }
+
+    public void setFilter(LessonFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Runs the test against a fake rapla server with the given settings
+     *
+     * @param serverSettings settings for the fake server, see FakeRaplaServer.configure, may null
+     * @param engine         way of finding the lessons in the pages
+     * @return report of the test
+     * @throws Exception if the fake server couldn't be started or the extraction failed
+     */
+    public String runAgainstFakeServer(String serverSettings, ExtractionEngine engine) throws Exception
+    {
+        FakeRaplaServer server = new FakeRaplaServer(0);
+
+        if (serverSettings != null)
+            server.configure(serverSettings);
+
+        server.start();
+
+        try {
+            RaplaTransport transport = new GovernedTransport(new PooledHttpTransport(parallelism), parallelism);
+
+            return run(server.getCalendarUri("loadtest"), transport, engine)
+                    + String.format(", server: %d requests, %d errors", server.getCountRequests(),
+                    server.getCountErrors());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Runs the test against a rapla calendar
+     *
+     * @param raplaLink link to the calendar
+     * @param transport transport for requesting the pages, is closed after the test
+     * @param engine    way of finding the lessons in the pages
+     * @return report of the test
+     * @throws Exception if the extraction failed
+     */
+    public String run(URI raplaLink, RaplaTransport transport, ExtractionEngine engine) throws Exception
+    {
+        latencies.clear();
+
+        try (RaplaTransport measuredTransport = new MeasuringTransport(transport)) {
+            RaplaReader raplaReader = new RaplaReader(dateFrom, dateUntil, raplaLink);
+            raplaReader.setTransport(measuredTransport);
+            raplaReader.setParallelism(parallelism);
+            raplaReader.setExtractionEngine(engine);
+            raplaReader.setView(view);
+            raplaReader.setFilter(filter);
+
+            long start = System.nanoTime();
+            int countLessons = raplaReader.getLessonsFromRapla().size();
+            long duration = System.nanoTime() - start;
+
+            return createReport(countLessons, duration);
+        }
+    }
+
+    /**
+     * Creates the report out of the measured latencies
+     *
+     * @param countLessons number of extracted lessons
+     * @param duration     duration of the whole extraction in nanoseconds
+     * @return report with throughput and latency percentiles
+     */
+    private String createReport(int countLessons, long duration)
+    {
+        List<Long> sortedLatencies = new ArrayList<>(latencies);
+        Collections.sort(sortedLatencies);
+
+        double seconds = duration / 1e9;
+
+        return String.format("%d pages, %d lessons in %.2f s with parallelism %d: %.1f pages/s, "
+                        + "latency p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                sortedLatencies.size(), countLessons, seconds, parallelism, sortedLatencies.size() / seconds,
+                percentile(sortedLatencies, 0.5), percentile(sortedLatencies, 0.99),
+                percentile(sortedLatencies, 1.0));
+    }
+
+    /**
+     * Gets a percentile of sorted latencies
+     *
+     * @param sortedLatencies latencies in nanoseconds in ascending order
+     * @param percentile      percentile between 0 and 1
+     * @return latency of the percentile in milliseconds
+     */
+    private static double percentile(List<Long> sortedLatencies, double percentile)
+    {
+        if (sortedLatencies.isEmpty())
+            return 0;
+
+        int index = (int) Math.ceil(percentile * sortedLatencies.size()) - 1;
+
+        return sortedLatencies.get(Math.max(index, 0)) / 1e6;
+    }
+
+    /**
+     * Transport measuring the latency of every request of another transport
+     */
+    private class MeasuringTransport implements RaplaTransport
+    {
+        /**
+         * Transport doing the requests
+         */
+        private RaplaTransport delegate;
+
+        private MeasuringTransport(RaplaTransport delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public RaplaResponse fetch(URI uri) throws IOException
+        {
+            long start = System.nanoTime();
+            RaplaResponse response = delegate.fetch(uri);
+            latencies.add(System.nanoTime() - start);
+
+            return response;
+        }
+
+        @Override
+        public String getStatistics()
+        {
+            return delegate.getStatistics();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package de.lippertmarkus.rapla2csv;
+
+/**
+ * Receiver of the measurements of an extraction, e.g. request latencies and lesson counts. Implementations must be
+ * thread safe, as the weeks are extracted concurrently. Names follow the Prometheus conventions: lower case with
+ * underscores, counters end with _total and durations are given in seconds.
+ */
+public interface MetricsRegistry
+{
+    /**
+     * Registry ignoring all measurements, used if no registry is set
+     */
+    MetricsRegistry NONE = new MetricsRegistry()
+    {
+        @Override
+        public void count(String name, String labelName, String labelValue, long amount)
+        {
+        }
+
+        @Override
+        public void observe(String name, double value)
+        {
+        }
+
+        @Override
+        public void gauge(String name, double value)
+        {
+        }
+    };
+
+    /**
+     * Increases a counter
+     *
+     * @param name   name of the counter
+     * @param amount amount to add
+     */
+    default void count(String name, long amount)
+    {
+        count(name, null, null, amount);
+    }
+
+    /**
+     * Increases a counter with a label, e.g. the reason of skipped lessons
+     *
+     * @param name       name of the counter
+     * @param labelName  name of the label, null for none
+     * @param labelValue value of the label, null for none
+     * @param amount     amount to add
+     */
+    void count(String name, String labelName, String labelValue, long amount);
+
+    /**
+     * Records a single measurement of a distribution, e.g. the latency of a request
+     *
+     * @param name  name of the distribution
+     * @param value measured value
+     */
+    void observe(String name, double value);
+
+    /**
+     * Sets a value which can go up and down, e.g. the lessons per second of the last extraction
+     *
+     * @param name  name of the value
+     * @param value current value
+     */
+    void gauge(String name, double value);
+}
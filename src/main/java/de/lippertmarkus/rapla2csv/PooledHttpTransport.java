@@ -0,0 +1,383 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Transport which keeps connections to the rapla server alive and reuses them for the following requests, so TCP
+ * connections and TLS handshakes aren't established again for every week. Pages are requested compressed with gzip or
+ * deflate, which makes the verbose week pages several times smaller on the network.
+ */
+public class PooledHttpTransport implements RaplaTransport
+{
+    /**
+     * Timeout for connecting and reading in milliseconds
+     */
+    private static final int TIMEOUT = 30000;
+
+    /**
+     * Content encodings accepted from the server
+     */
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    /**
+     * Client with the connection pool
+     */
+    private CloseableHttpClient httpClient;
+
+    /**
+     * Counter for all requests
+     */
+    private AtomicInteger countRequests = new AtomicInteger();
+
+    /**
+     * Counter for newly opened connections
+     */
+    private AtomicInteger countConnections = new AtomicInteger();
+
+    /**
+     * Counter for the bytes of the received pages as transferred, possibly compressed
+     */
+    private AtomicLong countTransferredBytes = new AtomicLong();
+
+    /**
+     * Counter for the bytes of the received pages after decompression
+     */
+    private AtomicLong countPageBytes = new AtomicLong();
+
+    /**
+     * Receiver of the transferred and page bytes
+     */
+    private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+
+    /**
+     * Constructs a new transport without proxy
+     *
+     * @param maxConnections maximum number of connections kept open to a host
+     */
+    public PooledHttpTransport(int maxConnections)
+    {
+        this(null, maxConnections);
+    }
+
+    /**
+     * Constructs a new transport
+     *
+     * @param proxy          HTTP proxy to use, may null
+     * @param maxConnections maximum number of connections kept open to a host
+     */
+    public PooledHttpTransport(Proxy proxy, int maxConnections)
+    {
+        // count every connection created by the pool to report how many requests reused a connection
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, config) -> {
+            countConnections.incrementAndGet();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        };
+
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new LazySslSocketFactory())
+                .build();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories,
+                connectionFactory);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .disableContentCompression() // decompressed below to measure the transferred bytes
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(TIMEOUT)
+                        .setSocketTimeout(TIMEOUT)
+                        .build());
+
+        // set proxy if provided
+        if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
+            InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+            clientBuilder.setProxy(new HttpHost(proxyAddress.getHostString(), proxyAddress.getPort()));
+        }
+
+        httpClient = clientBuilder.build();
+    }
+
+    /**
+     * Sets the receiver of the transferred and page bytes
+     *
+     * @param metrics registry to use
+     */
+    public void setMetrics(MetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public RaplaResponse fetch(URI uri) throws IOException
+    {
+        return fetchIfModified(uri, null, null);
+    }
+
+    @Override
+    public RaplaResponse fetchIfModified(URI uri, String eTag, String lastModified) throws IOException
+    {
+        HttpGet request = new HttpGet(uri);
+        request.setHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+
+        if (eTag != null)
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+        if (lastModified != null)
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+
+        countRequests.incrementAndGet();
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            HttpEntity entity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (statusCode == 304) {
+                EntityUtils.consume(entity);
+                return RaplaResponse.notModified(uri);
+            }
+
+            if (statusCode != 200) {
+                EntityUtils.consume(entity); // keep connection reusable
+                throw new RaplaHttpException(statusCode, uri.toString(), getRetryAfterMillis(response));
+            }
+
+            if (entity == null)
+                throw new IOException("Empty response fetching URL " + uri);
+
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            String encoding = getHeaderValue(response, HttpHeaders.CONTENT_ENCODING);
+            byte[] body = decode(EntityUtils.toByteArray(entity), encoding, uri);
+
+            return new RaplaResponse(uri, body, charset != null ? charset.name() : null,
+                    getHeaderValue(response, HttpHeaders.ETAG), getHeaderValue(response, HttpHeaders.LAST_MODIFIED));
+        }
+    }
+
+    /**
+     * Decompresses the content of a response and counts the transferred and decompressed bytes
+     *
+     * @param content  content as transferred
+     * @param encoding content encoding of the response, may null
+     * @param uri      link of the requested page
+     * @return decompressed content
+     * @throws IOException if the content couldn't be decompressed or the encoding is unknown
+     */
+    private byte[] decode(byte[] content, String encoding, URI uri) throws IOException
+    {
+        byte[] body;
+
+        if (encoding == null || encoding.trim().isEmpty() || encoding.trim().equalsIgnoreCase("identity"))
+            body = content;
+        else if (encoding.trim().equalsIgnoreCase("gzip") || encoding.trim().equalsIgnoreCase("x-gzip"))
+            body = readAll(new GZIPInputStream(new ByteArrayInputStream(content)));
+        else if (encoding.trim().equalsIgnoreCase("deflate"))
+            body = inflate(content);
+        else
+            throw new IOException("Unsupported content encoding '" + encoding + "' fetching URL " + uri);
+
+        countTransferredBytes.addAndGet(content.length);
+        countPageBytes.addAndGet(body.length);
+        metrics.count("rapla_transferred_bytes_total", content.length);
+        metrics.count("rapla_page_bytes_total", body.length);
+
+        return body;
+    }
+
+    /**
+     * Decompresses deflate content. The standard requires a zlib header, but some servers send raw deflate data.
+     *
+     * @param content compressed content
+     * @return decompressed content
+     * @throws IOException if the content couldn't be decompressed
+     */
+    private static byte[] inflate(byte[] content) throws IOException
+    {
+        // a zlib header is a multiple of 31 with compression method 8
+        boolean zlib = content.length >= 2 && (content[0] & 0x0f) == 8
+                && ((content[0] & 0xff) << 8 | (content[1] & 0xff)) % 31 == 0;
+
+        Inflater inflater = new Inflater(!zlib);
+
+        try {
+            return readAll(new InflaterInputStream(new ByteArrayInputStream(content), inflater));
+        } finally {
+            inflater.end(); // free the native memory now, the stream doesn't end inflaters it didn't create
+        }
+    }
+
+    /**
+     * Reads a stream completely and closes it
+     *
+     * @param in stream to read
+     * @return content of the stream
+     * @throws IOException if the stream couldn't be read
+     */
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+
+            while ((length = input.read(buffer)) != -1)
+                out.write(buffer, 0, length);
+
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Gets the ratio between the received page bytes and the transferred bytes
+     *
+     * @return compression ratio, 1 if nothing was compressed or nothing received
+     */
+    public double getCompressionRatio()
+    {
+        long transferred = countTransferredBytes.get();
+
+        return transferred > 0 ? (double) countPageBytes.get() / transferred : 1;
+    }
+
+    /**
+     * Gets the value of a response header
+     *
+     * @param response response of the server
+     * @param name     name of the header
+     * @return value of the header or null if not present
+     */
+    private String getHeaderValue(HttpResponse response, String name)
+    {
+        Header header = response.getFirstHeader(name);
+
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Gets the time the server asked to wait before the next request, given in seconds or as date
+     *
+     * @param response response of the server
+     * @return time to wait in milliseconds or -1 if not given or invalid
+     */
+    private long getRetryAfterMillis(HttpResponse response)
+    {
+        String retryAfter = getHeaderValue(response, HttpHeaders.RETRY_AFTER);
+
+        if (retryAfter == null)
+            return -1;
+
+        try {
+            return Math.max(Long.parseLong(retryAfter.trim()) * 1000, 0);
+        } catch (NumberFormatException e) {
+            Date retryDate = DateUtils.parseDate(retryAfter);
+
+            return retryDate != null ? Math.max(retryDate.getTime() - System.currentTimeMillis(), 0) : -1;
+        }
+    }
+
+    @Override
+    public String getStatistics()
+    {
+        int requests = countRequests.get();
+        int connections = countConnections.get();
+
+        return requests + " requests over " + connections + " connections (" + Math.max(requests - connections, 0)
+                + " reused), " + countTransferredBytes.get() / 1024 + " KiB transferred for "
+                + countPageBytes.get() / 1024 + " KiB of pages (compression ratio "
+                + String.format(Locale.ROOT, "%.1f", getCompressionRatio()) + ")";
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        httpClient.close();
+    }
+
+    /**
+     * Socket factory for HTTPS connections, which initializes the default SSL context on the first HTTPS connection
+     * instead of when the transport is created. The initialization takes several hundred milliseconds, which runs
+     * against plain HTTP servers don't need to wait for.
+     */
+    private static class LazySslSocketFactory implements LayeredConnectionSocketFactory
+    {
+        /**
+         * Factory with the default SSL context, null until the first HTTPS connection
+         */
+        private volatile SSLConnectionSocketFactory delegate;
+
+        private SSLConnectionSocketFactory getDelegate()
+        {
+            if (delegate == null) {
+                synchronized (this) {
+                    if (delegate == null)
+                        delegate = SSLConnectionSocketFactory.getSocketFactory();
+                }
+            }
+
+            return delegate;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException
+        {
+            return getDelegate().createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException
+        {
+            return getDelegate().connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException
+        {
+            return getDelegate().createLayeredSocket(socket, target, port, context);
+        }
+    }
+}
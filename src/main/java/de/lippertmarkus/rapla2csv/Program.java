@@ -2,10 +2,32 @@ package de.lippertmarkus.rapla2csv;
 
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 /**
  * Entry class for the application.
@@ -13,6 +35,11 @@ import java.time.LocalDate;
  */
 public class Program
 {
+    /**
+     * Logger of all classes of the application, kept referenced so its configuration isn't lost
+     */
+    private static final Logger APPLICATION_LOGGER = Logger.getLogger(Program.class.getPackage().getName());
+
     /**
      * The reader object to extract the data from rapla
      */
@@ -39,9 +66,9 @@ public class Program
     private LocalDate timeUntil;
 
     /**
-     * Link to the rapla web calendar view with a key or a user and file
+     * Links to the rapla web calendar views with a key or a user and file, the lessons of several calendars are merged
      */
-    private URL raplaLink;
+    private List<URL> raplaLinks = new ArrayList<>();
 
     /**
      * Proxy setting if provided
@@ -53,6 +80,168 @@ public class Program
      */
     private String exportFileName = "rapla.csv";
 
+    /**
+     * Number of weeks to request from rapla concurrently
+     */
+    private int parallelism = 1;
+
+    /**
+     * Maximum number of requests per second to the rapla server, 0 for unlimited
+     */
+    private double maxRate = 0;
+
+    /**
+     * Maximum number of retries of a failed request to the rapla server
+     */
+    private int maxRetries = 4;
+
+    /**
+     * Directory to cache the rapla web pages in, if provided
+     */
+    private Path cacheDirectory;
+
+    /**
+     * Directory for the journals of completed pages, which let an interrupted export resume, if provided
+     */
+    private Path checkpointDirectory;
+
+    /**
+     * Journals of the extracted calendars, deleted after a successful export
+     */
+    private List<CheckpointJournal> journals = new ArrayList<>();
+
+    /**
+     * File name of the file to save the changes since the previous export into, if provided
+     */
+    private String deltaFileName;
+
+    /**
+     * Memory budget for sorting the extracted lessons in bytes, beyond which sorted runs are spilled to temporary
+     * files, 0 for sorting in memory
+     */
+    private long sortMemory = 0;
+
+    /**
+     * File name of the CSV file to save the double-booked rooms and professors into instead of exporting the lessons,
+     * if provided
+     */
+    private String conflictFileName;
+
+    /**
+     * Time to print the lessons of all rooms and professors at instead of exporting the lessons, if provided
+     */
+    private LocalDateTime occupancyTime;
+
+    /**
+     * Binary snapshot file to save the extracted lessons into or to load the lessons from, if provided
+     */
+    private Path snapshotFile;
+
+    /**
+     * Whether the output files are compressed with gzip
+     */
+    private boolean gzip = false;
+
+    /**
+     * Whether lessons are written to the output while the extraction is still running
+     */
+    private boolean streaming = false;
+
+    /**
+     * Way of finding the lesson information in the rapla web pages
+     */
+    private ExtractionEngine extractionEngine = ExtractionEngine.DOM;
+
+    /**
+     * View of the requested rapla web pages
+     */
+    private CalendarView view = CalendarView.AUTO;
+
+    /**
+     * Selection of the lessons to extract
+     */
+    private LessonFilter filter = LessonFilter.ALL;
+
+    /**
+     * Whether a load test is run instead of an export
+     */
+    private boolean loadTest = false;
+
+    /**
+     * Settings for the fake rapla server, if provided
+     */
+    private String fakeServerSettings;
+
+    /**
+     * Manifest file with the calendars of a batch export, if provided
+     */
+    private Path batchManifest;
+
+    /**
+     * Port for serving calendars over HTTP, if provided
+     */
+    private Integer serverPort;
+
+    /**
+     * Address the server listens on, the loopback address if not provided
+     */
+    private InetAddress serverAddress = InetAddress.getLoopbackAddress();
+
+    /**
+     * Hosts of the rapla links the server extracts, besides the hosts of the given links
+     */
+    private List<String> allowedHosts = new ArrayList<>();
+
+    /**
+     * Time between two refreshes of a served calendar in minutes
+     */
+    private long refreshInterval = 15;
+
+    /**
+     * Maximum number of calendars cached by the server
+     */
+    private int serverCacheSize = 100;
+
+    /**
+     * File to write the metrics of the run into, if provided
+     */
+    private Path metricsFile;
+
+    /**
+     * Measurements of the run
+     */
+    private InMemoryMetricsRegistry metrics = new InMemoryMetricsRegistry();
+
+    /**
+     * Exit code of the program, not 0 if an export failed
+     */
+    private int exitCode = 0;
+
+    /**
+     * Part of the time period which is extracted by this process, null for the whole time period
+     */
+    private Shard shard;
+
+    /**
+     * Number of local worker processes the export is split into, 0 for extracting in this process
+     */
+    private int countShards = 0;
+
+    /**
+     * Sorted CSV files to merge instead of extracting lessons, null for none
+     */
+    private List<Path> mergeFiles;
+
+    /**
+     * Command line arguments of the program, passed on to the worker processes
+     */
+    private String[] commandLineArguments;
+
+    /**
+     * Lessons extracted from rapla
+     */
+    private List<Lesson> extractedLessons = new ArrayList<>();
+
 
     /**
      * Constructs a new instance of the application and parses command line options
@@ -61,6 +250,7 @@ public class Program
      */
     private Program(String[] args)
     {
+        commandLineArguments = args;
         createCommandLineOptions();
 
         try {
@@ -78,7 +268,21 @@ public class Program
      */
     public static void main(String[] args)
     {
-        new Program(args).extractAndExportLessonsToCSV();
+        Program program = new Program(args);
+
+        if (program.loadTest)
+            program.runLoadTest();
+        else if (program.batchManifest != null)
+            program.runBatchExport();
+        else if (program.serverPort != null)
+            program.runCalendarServer();
+        else
+            program.extractAndExportLessonsToCSV();
+
+        program.writeMetrics();
+
+        if (program.exitCode != 0)
+            System.exit(program.exitCode);
     }
 
     /**
@@ -97,6 +301,29 @@ public class Program
     {
         additionalOptions.addOption("h", "help", false, "Shows this help");
         additionalOptions.addOption("v", "version", false, "Show version number");
+        additionalOptions.addOption(Option.builder()
+                .longOpt("fake-server")
+                .argName("port")
+                .hasArg()
+                .desc("Runs a local fake rapla server for testing on the given port until the program is stopped")
+                .build()
+        );
+        additionalOptions.addOption(createFakeConfigOption());
+    }
+
+    /**
+     * Creates the option for the settings of the fake rapla server, used for the fake server and the load test
+     *
+     * @return the option
+     */
+    private Option createFakeConfigOption()
+    {
+        return Option.builder()
+                .longOpt("fake-config")
+                .argName("settings")
+                .hasArg()
+                .desc("Settings of the fake rapla server, e.g. latency=50,errors=0.01,lessons=4")
+                .build();
     }
 
     /**
@@ -109,7 +336,6 @@ public class Program
                 .argName("date")
                 .hasArg()
                 .desc("Begin of the export time period, e.g. 2015-12-31")
-                .required()
                 .build()
         );
         exportOptions.addOption(Option.builder("u")
@@ -117,15 +343,14 @@ public class Program
                 .argName("date")
                 .hasArg()
                 .desc("End of the export time period, e.g. 2016-12-31")
-                .required()
                 .build()
         );
         exportOptions.addOption(Option.builder("l")
                 .longOpt("link")
                 .argName("link")
                 .hasArg()
-                .desc("Rapla link IN QUOTES, e.g. \"http://example.com/rapla?key=abc123\"")
-                .required()
+                .desc("Rapla link IN QUOTES, e.g. \"http://example.com/rapla?key=abc123\", can be given several " +
+                        "times for merging calendars into one export without duplicate lessons")
                 .build()
         );
         exportOptions.addOption(Option.builder("p")
@@ -138,9 +363,239 @@ public class Program
                 .longOpt("output")
                 .argName("CSV-file")
                 .hasArg()
-                .desc("CSV file to save the rapla lessons into")
+                .desc("CSV file to save the rapla lessons into, iCalendar for the extension .ics, compressed with " +
+                        "gzip for the extension .gz, - for standard output")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("shard")
+                .argName("number/count")
+                .hasArg()
+                .desc("Extracts only one of count parts of whole weeks of the time period into a CSV file sorted by " +
+                        "date, e.g. 2/4, for merging the parts with --merge")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("shards")
+                .argName("number")
+                .hasArg()
+                .desc("Extracts the time period in the given number of worker processes and merges their parts")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("merge")
+                .argName("files")
+                .hasArgs()
+                .desc("Merges CSV files sorted by date, e.g. the parts of --shard, into the output file instead of " +
+                        "extracting, lessons contained in several files are kept once")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("conflicts")
+                .argName("file")
+                .hasArg()
+                .desc("Analyzes the lessons for double-booked rooms and professors and saves them into the CSV file " +
+                        "instead of exporting the lessons, with --merge the files don't need to be sorted")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("at")
+                .argName("time")
+                .hasArg()
+                .desc("Prints the lessons taking place in every room and of every professor at the time instead of " +
+                        "exporting the lessons, e.g. 2016-03-07T10:15")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("snapshot")
+                .argName("file")
+                .hasArg()
+                .desc("Binary snapshot file to save the extracted lessons into for fast reading later, without a " +
+                        "link the lessons are read from the snapshot instead of rapla")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("z")
+                .longOpt("gzip")
+                .desc("Compresses output and delta file with gzip, .gz is appended to their names, also for " +
+                        "standard output. Files ending with .gz are always compressed")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("s")
+                .longOpt("stream")
+                .desc("Write the lessons of every week as soon as it's extracted instead of after the extraction")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("n")
+                .longOpt("parallelism")
+                .argName("number")
+                .hasArg()
+                .desc("Number of weeks to request from rapla at the same time, default 1")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("e")
+                .longOpt("engine")
+                .argName("engine")
+                .hasArg()
+                .desc("Way of finding the lessons in the rapla pages: dom (default) or streaming, which is faster " +
+                        "on large pages")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("view")
+                .argName("view")
+                .hasArg()
+                .desc("View of the requested rapla pages: auto (default, month if the server provides it), week or " +
+                        "month, which needs about a quarter of the requests")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("title")
+                .argName("text")
+                .hasArg()
+                .desc("Only exports lessons whose title contains the text, ignoring case")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("prof")
+                .argName("name")
+                .hasArg()
+                .desc("Only exports lessons whose professor contains the name, ignoring case, e.g. the surname")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("room")
+                .argName("room")
+                .hasArg()
+                .desc("Only exports lessons whose room contains the text, ignoring case")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("weekdays")
+                .argName("days")
+                .hasArg()
+                .desc("Only exports lessons on the weekdays, e.g. mo,tu,fr")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("time")
+                .argName("from-until")
+                .hasArg()
+                .desc("Only exports lessons within the time window, e.g. 08:00-12:00")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("max-rate")
+                .argName("number")
+                .hasArg()
+                .desc("Maximum number of requests per second to the rapla server, default unlimited")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("retries")
+                .argName("number")
+                .hasArg()
+                .desc("Number of retries of a failed or throttled request to the rapla server, default 4")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("c")
+                .longOpt("cache-dir")
+                .argName("directory")
+                .hasArg()
+                .desc("Directory to cache the rapla web pages in for following exports")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("memory")
+                .argName("MiB")
+                .hasArg()
+                .desc("Memory budget for the extracted lessons, which are spilled as sorted runs to temporary files " +
+                        "next to the output file beyond it and exported sorted by date, time and title")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("checkpoint")
+                .argName("directory")
+                .hasArg()
+                .desc("Directory for journaling the completed pages, an interrupted export with the same link and " +
+                        "time period resumes after the last completed page")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("d")
+                .longOpt("delta")
+                .argName("file")
+                .hasArg()
+                .desc("CSV or JSON file to save the lessons into, which were added, removed or moved since the " +
+                        "previous export to the output file")
+                .build()
+        );
+        exportOptions.addOption(Option.builder("b")
+                .longOpt("batch")
+                .argName("manifest")
+                .hasArg()
+                .desc("Exports all calendars of the manifest file in one run instead of a single calendar, every " +
+                        "line contains link, from, until and CSV file separated by spaces")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("serve")
+                .argName("port")
+                .hasArg()
+                .desc("Serves calendars as CSV on the port until the program is stopped, e.g. GET " +
+                        "/calendar?link=...&from=2016-01-01&until=2016-12-31")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("refresh")
+                .argName("minutes")
+                .hasArg()
+                .desc("Time between two refreshes of a served calendar, default 15")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("serve-cache")
+                .argName("number")
+                .hasArg()
+                .desc("Maximum number of calendars cached by the server, default 100")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("bind")
+                .argName("address")
+                .hasArg()
+                .desc("Address the server listens on, default the loopback address, e.g. 0.0.0.0 for all interfaces")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("allow-host")
+                .argName("host")
+                .hasArg()
+                .desc("Host of the rapla links the server extracts, can be given several times, the hosts of the " +
+                        "links given with -l are always allowed")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("metrics")
+                .argName("file")
+                .hasArg()
+                .desc("File to write the metrics of the run into, as JSON report (.json) or in the Prometheus text " +
+                        "format (other extensions)")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("log-level")
+                .argName("level")
+                .hasArg()
+                .desc("Level of the log messages on standard error: off, severe, warning, info (default), fine " +
+                        "(e.g. skipped lessons) or finer (e.g. every week)")
+                .build()
+        );
+        exportOptions.addOption(Option.builder()
+                .longOpt("load-test")
+                .desc("Measures throughput and latency of the extraction instead of exporting, against a local " +
+                        "fake rapla server if no link is given")
                 .build()
         );
+        exportOptions.addOption(createFakeConfigOption());
     }
 
     /**
@@ -153,7 +608,7 @@ public class Program
     {
         CommandLine additionalCL = new DefaultParser().parse(additionalOptions, arguments, true);
 
-        if (additionalCL.getOptions().length > 0) {
+        if (additionalCL.hasOption("h") || additionalCL.hasOption("v") || additionalCL.hasOption("fake-server")) {
             parseAdditionalCommandLineOptions(additionalCL);
         } else {
             parseExportCommandLineOptions(arguments);
@@ -167,8 +622,6 @@ public class Program
      */
     private void parseAdditionalCommandLineOptions(CommandLine additionalCL)
     {
-        Package currPackage = this.getClass().getPackage(); // get package for extracting information
-
         if (additionalCL.hasOption("h")) {
             HelpFormatter helpFormatter = new HelpFormatter();
 
@@ -176,10 +629,12 @@ public class Program
             Options allOptions = additionalOptions;
             exportOptions.getOptions().forEach(allOptions::addOption);
 
-            helpFormatter.printHelp(currPackage.getImplementationTitle(), allOptions, true);
+            helpFormatter.printHelp(Version.TITLE, allOptions, true);
         } else if (additionalCL.hasOption("v")) {
-            System.out.println(currPackage.getImplementationTitle() + " " + currPackage.getSpecificationVersion());
-            System.out.println("(c) " + currPackage.getImplementationVendor());
+            System.out.println(Version.TITLE + " " + Version.VERSION);
+            System.out.println("(c) " + Version.VENDOR);
+        } else if (additionalCL.hasOption("fake-server")) {
+            runFakeServer(additionalCL.getOptionValue("fake-server"), additionalCL.getOptionValue("fake-config"));
         }
 
         System.exit(0); // end program after additional options
@@ -198,79 +653,988 @@ public class Program
         if (exportCL.hasOption("o"))
             exportFileName = exportCL.getOptionValue("o");
 
-        if(exportCL.hasOption("p"))
-            proxy = createProxyFromString(exportCL.getOptionValue("p"));
+        if (exportCL.hasOption("d"))
+            deltaFileName = exportCL.getOptionValue("d");
 
-        // check if types of export options are correct
-        try {
-            timeFrom = LocalDate.parse(exportCL.getOptionValue("f"));
-            timeUntil = LocalDate.parse(exportCL.getOptionValue("u"));
-            raplaLink = new URL(exportCL.getOptionValue("l"));
-        } catch (Exception e) {
-            throw new ParseException("Options are not in a valid format");
-        }
-    }
+        conflictFileName = exportCL.getOptionValue("conflicts");
 
-    /**
-     * Parses a string containing host and port to an instance of Proxy
-     *
-     * @param proxyString contains host and port in format "host:port"
-     * @return Proxy containing the settings from string
-     * @throws ParseException when parsing the string fails
-     */
-    private Proxy createProxyFromString(String proxyString) throws ParseException {
-        String[] parts = proxyString.split(":");
+        streaming = exportCL.hasOption("s");
+        gzip = exportCL.hasOption("z");
 
-        // string must contain host and port
-        if(parts.length != 2)
-            throw new ParseException("Invalid format for proxy");
+        if (gzip && !exportFileName.equals("-") && !GzipFiles.isGzipFileName(exportFileName))
+            exportFileName += GzipFiles.EXTENSION;
+
+        if (gzip && deltaFileName != null && !GzipFiles.isGzipFileName(deltaFileName))
+            deltaFileName += GzipFiles.EXTENSION;
+        loadTest = exportCL.hasOption("load-test");
+        fakeServerSettings = exportCL.getOptionValue("fake-config");
+
+        batchManifest = exportCL.hasOption("b") ? Paths.get(exportCL.getOptionValue("b")) : null;
+        snapshotFile = exportCL.hasOption("snapshot") ? Paths.get(exportCL.getOptionValue("snapshot")) : null;
+        metricsFile = exportCL.hasOption("metrics") ? Paths.get(exportCL.getOptionValue("metrics")) : null;
+        checkpointDirectory = exportCL.hasOption("checkpoint") ? Paths.get(exportCL.getOptionValue("checkpoint"))
+                : null;
+
+        if (exportCL.hasOption("merge")) {
+            mergeFiles = new ArrayList<>();
+
+            for (String mergeFile : exportCL.getOptionValues("merge"))
+                mergeFiles.add(Paths.get(mergeFile));
+        }
 
-        // check if port is number
         try {
-            return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
-        } catch (NumberFormatException e) {
-            throw new ParseException("Invalid format for proxy");
+            configureLogging(Level.parse(exportCL.getOptionValue("log-level", "info").toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unknown log level '" + exportCL.getOptionValue("log-level") + "'");
         }
-    }
 
-    /**
-     * Extracts the lessons from rapla with the parsed command line options and export them to CSV file
-     */
-    private void extractAndExportLessonsToCSV()
-    {
-        extractLessons();
-        exportLessonsToCSV();
-    }
+        if (snapshotFile != null && (streaming || loadTest))
+            throw new ParseException("Snapshots can't be combined with streaming or load test");
+
+        if (checkpointDirectory != null && (loadTest || batchManifest != null || exportCL.hasOption("serve")))
+            throw new ParseException("Checkpoints can't be combined with load test, batch export or serving");
+
+        if (metricsFile != null && (loadTest || exportCL.hasOption("serve")))
+            throw new ParseException("Metrics file can't be combined with load test or serving, the server answers " +
+                    "GET /metrics instead");
 
-    /**
-     * Extracts the lessons from rapla and outputs statistics afterward
-     */
-    private void extractLessons()
-    {
         try {
-            raplaReader = new RaplaReader(timeFrom, timeUntil, raplaLink);
+            if (exportCL.hasOption("serve"))
+                serverPort = Integer.parseInt(exportCL.getOptionValue("serve"));
 
-            if(proxy != null)
-                raplaReader.setProxy(proxy);
+            if (exportCL.hasOption("refresh"))
+                refreshInterval = Long.parseLong(exportCL.getOptionValue("refresh"));
 
-            raplaReader.getLessonsFromRapla();
-        } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
+            if (exportCL.hasOption("serve-cache"))
+                serverCacheSize = Integer.parseInt(exportCL.getOptionValue("serve-cache"));
+
+            if (exportCL.hasOption("shards"))
+                countShards = Integer.parseInt(exportCL.getOptionValue("shards"));
+
+            if (exportCL.hasOption("shard"))
+                shard = Shard.parse(exportCL.getOptionValue("shard"));
+
+            if (exportCL.hasOption("memory"))
+                sortMemory = Long.parseLong(exportCL.getOptionValue("memory")) * 1024 * 1024;
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Options are not in a valid format");
         }
 
-        System.out.println(raplaReader.getExtractedLessonsInfo());
-    }
+        checkRequiredExportOptions(exportCL);
+        checkShardingOptions(exportCL);
 
-    /**
-     * Exports the extracted lessons to a CSV file for import into calendar software
-     */
-    private void exportLessonsToCSV()
+        if (isConflictAnalysis() && (streaming || batchManifest != null || serverPort != null || loadTest
+                || deltaFileName != null || sortMemory > 0 || shard != null || countShards > 0))
+            throw new ParseException("Conflict analysis can't be combined with streaming, batch export, serving, " +
+                    "load test, delta export, memory budget or sharding");
+
+        if (batchManifest != null && (streaming || deltaFileName != null || loadTest))
+            throw new ParseException("Batch export can't be combined with streaming, delta export or load test");
+
+        if (serverPort != null && (batchManifest != null || streaming || deltaFileName != null || loadTest))
+            throw new ParseException("Serving can't be combined with batch export, streaming, delta export or load test");
+
+        if (exportCL.hasOption("memory") && (sortMemory < 1 || streaming || batchManifest != null
+                || serverPort != null || loadTest || snapshotFile != null || deltaFileName != null
+                || isIcsFileName(exportFileName)))
+            throw new ParseException("Memory budget must be at least 1 MiB and can't be combined with streaming, " +
+                    "batch export, serving, load test, snapshots, delta export or iCalendar export");
+
+        if (refreshInterval < 1 || serverCacheSize < 1)
+            throw new ParseException("Refresh interval and server cache size must be at least 1");
+
+        if (streaming && deltaFileName != null)
+            throw new ParseException("Delta export isn't possible while streaming");
+
+        if (!streaming && exportFileName.equals("-"))
+            throw new ParseException("Output to standard output is only possible while streaming");
+
+        if (isIcsFileName(exportFileName) && (streaming || deltaFileName != null))
+            throw new ParseException("iCalendar export isn't possible while streaming or with delta export");
+
+        if(exportCL.hasOption("p"))
+            proxy = createProxyFromString(exportCL.getOptionValue("p"));
+
+        // check if types of export options are correct
+        try {
+            if (exportCL.hasOption("f"))
+                timeFrom = LocalDate.parse(exportCL.getOptionValue("f"));
+
+            if (exportCL.hasOption("u"))
+                timeUntil = LocalDate.parse(exportCL.getOptionValue("u"));
+
+            if (exportCL.hasOption("l"))
+                for (String raplaLink : exportCL.getOptionValues("l"))
+                    raplaLinks.add(new URL(raplaLink));
+
+            if (exportCL.hasOption("n"))
+                parallelism = Integer.parseInt(exportCL.getOptionValue("n"));
+
+            if (exportCL.hasOption("max-rate"))
+                maxRate = Double.parseDouble(exportCL.getOptionValue("max-rate"));
+
+            if (exportCL.hasOption("retries"))
+                maxRetries = Integer.parseInt(exportCL.getOptionValue("retries"));
+
+            if (exportCL.hasOption("e"))
+                extractionEngine = ExtractionEngine.valueOf(exportCL.getOptionValue("e").toUpperCase());
+
+            if (exportCL.hasOption("view"))
+                view = CalendarView.valueOf(exportCL.getOptionValue("view").toUpperCase());
+
+            filter = createFilter(exportCL);
+
+            if (exportCL.hasOption("c"))
+                cacheDirectory = Paths.get(exportCL.getOptionValue("c"));
+
+            if (exportCL.hasOption("at"))
+                occupancyTime = LocalDateTime.parse(exportCL.getOptionValue("at"));
+
+            if (exportCL.hasOption("bind"))
+                serverAddress = InetAddress.getByName(exportCL.getOptionValue("bind"));
+        } catch (Exception e) {
+            throw new ParseException("Options are not in a valid format");
+        }
+
+        if (parallelism < 1)
+            throw new ParseException("Parallelism must be at least 1");
+
+        if (!filter.isEmpty() && serverPort != null)
+            throw new ParseException("Filters can't be combined with serving");
+
+        if (exportCL.hasOption("allow-host"))
+            for (String host : exportCL.getOptionValues("allow-host"))
+                allowedHosts.add(host);
+
+        for (URL raplaLink : raplaLinks)
+            allowedHosts.add(raplaLink.getHost());
+
+        if (serverPort != null && allowedHosts.isEmpty())
+            throw new ParseException("Serving needs the allowed rapla hosts, given with --allow-host or -l");
+
+        if (raplaLinks.size() > 1 && loadTest)
+            throw new ParseException("Load test can't be combined with several links");
+
+        if (maxRate < 0 || maxRetries < 0)
+            throw new ParseException("Rate and retries must not be negative");
+
+        // a shard extracts only its own weeks of the time period
+        if (shard != null) {
+            LocalDate shardFrom = shard.getFrom(timeFrom, timeUntil);
+            timeUntil = shard.getUntil(timeFrom, timeUntil);
+            timeFrom = shardFrom;
+        }
+    }
+
+    /**
+     * Checks that sharding and merging aren't combined with each other or with other modes
+     *
+     * @param exportCL command line object for export options
+     * @throws ParseException if the options can't be combined
+     */
+    private void checkShardingOptions(CommandLine exportCL) throws ParseException
+    {
+        if (shard == null && countShards == 0 && mergeFiles == null)
+            return;
+
+        if ((shard != null ? 1 : 0) + (countShards != 0 ? 1 : 0) + (mergeFiles != null ? 1 : 0) > 1)
+            throw new ParseException("Only one of --shard, --shards and --merge can be given");
+
+        if (streaming || batchManifest != null || serverPort != null || loadTest || snapshotFile != null)
+            throw new ParseException("Sharding and merging can't be combined with streaming, batch export, serving, " +
+                    "load test or snapshots");
+
+        if (mergeFiles != null && exportCL.hasOption("l"))
+            throw new ParseException("Merging can't be combined with a link");
+
+        if (countShards < 0)
+            throw new ParseException("Number of shards must be at least 1");
+
+        if (shard != null && (deltaFileName != null || isIcsFileName(exportFileName)))
+            throw new ParseException("Shards are exported to CSV files without delta export");
+    }
+
+    /**
+     * Creates the selection of the lessons to extract out of the filter options
+     *
+     * @param exportCL command line object for export options
+     * @return filter with the given options, accepting all lessons without filter options
+     * @throws IllegalArgumentException if weekdays or time window are invalid
+     */
+    private static LessonFilter createFilter(CommandLine exportCL)
+    {
+        Set<DayOfWeek> weekdays = exportCL.hasOption("weekdays")
+                ? LessonFilter.parseWeekdays(exportCL.getOptionValue("weekdays")) : null;
+        LocalTime timeFrom = null;
+        LocalTime timeUntil = null;
+
+        if (exportCL.hasOption("time")) {
+            String[] timeWindow = exportCL.getOptionValue("time").split("-");
+
+            if (timeWindow.length != 2)
+                throw new IllegalArgumentException("Time window must be given as from-until");
+
+            timeFrom = LocalTime.parse(timeWindow[0].trim());
+            timeUntil = LocalTime.parse(timeWindow[1].trim());
+        }
+
+        return new LessonFilter(exportCL.getOptionValue("title"), exportCL.getOptionValue("prof"),
+                exportCL.getOptionValue("room"), weekdays, timeFrom, timeUntil);
+    }
+
+    /**
+     * Checks that time period and link are given, as far as they're needed. Batch exports take them from the manifest,
+     * the server from the requests, exports from a snapshot or merged files need none and load tests use a fake server
+     * if no link is given.
+     *
+     * @param exportCL command line object for export options
+     * @throws MissingOptionException if a needed option is missing
+     */
+    private void checkRequiredExportOptions(CommandLine exportCL) throws MissingOptionException
+    {
+        if (batchManifest != null || serverPort != null || mergeFiles != null
+                || (snapshotFile != null && !exportCL.hasOption("l")))
+            return;
+
+        List<String> missingOptions = new ArrayList<>();
+
+        if (!exportCL.hasOption("f"))
+            missingOptions.add("f");
+        if (!exportCL.hasOption("u"))
+            missingOptions.add("u");
+        if (!exportCL.hasOption("l") && !loadTest)
+            missingOptions.add("l");
+
+        if (!missingOptions.isEmpty())
+            throw new MissingOptionException(missingOptions);
+    }
+
+    /**
+     * Sends the log messages of the application with the given level or above to standard error, one line per message
+     *
+     * @param level lowest level to log
+     */
+    private static void configureLogging(Level level)
+    {
+        ConsoleHandler handler = new ConsoleHandler();
+
+        handler.setLevel(level);
+        handler.setFormatter(new Formatter()
+        {
+            @Override
+            public String format(LogRecord record)
+            {
+                return record.getLevel() + ": " + formatMessage(record) + System.lineSeparator();
+            }
+        });
+
+        // only the own messages, libraries like the HTTP client log a lot on fine levels
+        APPLICATION_LOGGER.setUseParentHandlers(false);
+        APPLICATION_LOGGER.addHandler(handler);
+        APPLICATION_LOGGER.setLevel(level);
+    }
+
+    /**
+     * Writes the metrics of the run into the metrics file, if provided
+     */
+    private void writeMetrics()
+    {
+        if (metricsFile == null)
+            return;
+
+        String content = metricsFile.toString().toLowerCase().endsWith(".json")
+                ? metrics.toJsonReport() : metrics.toPrometheusText();
+
+        try {
+            Files.write(metricsFile, content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Writing metrics failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes lessons as CSV
+     *
+     * @param lessons lessons to write
+     * @param out     stream to write to
+     * @throws IOException if the lessons couldn't be written
+     */
+    private static void writeCsv(List<Lesson> lessons, OutputStream out) throws IOException
+    {
+        CsvLessonWriter writer = new CsvLessonWriter(out);
+
+        for (Lesson lesson : lessons)
+            writer.accept(lesson);
+
+        writer.flush();
+    }
+
+    /**
+     * Checks if a file should be exported in iCalendar format
+     *
+     * @param fileName name of the file
+     * @return true for the extension .ics, also if compressed with gzip
+     */
+    static boolean isIcsFileName(String fileName)
+    {
+        return GzipFiles.stripExtension(fileName).toLowerCase().endsWith(".ics");
+    }
+
+    /**
+     * Parses a string containing host and port to an instance of Proxy
+     *
+     * @param proxyString contains host and port in format "host:port"
+     * @return Proxy containing the settings from string
+     * @throws ParseException when parsing the string fails
+     */
+    private Proxy createProxyFromString(String proxyString) throws ParseException {
+        String[] parts = proxyString.split(":");
+
+        // string must contain host and port
+        if(parts.length != 2)
+            throw new ParseException("Invalid format for proxy");
+
+        // check if port is number
+        try {
+            return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid format for proxy");
+        }
+    }
+
+    /**
+     * Runs a fake rapla server until the program is stopped
+     *
+     * @param port     port to listen on
+     * @param settings settings of the server, may null
+     */
+    private void runFakeServer(String port, String settings)
+    {
+        try {
+            FakeRaplaServer server = new FakeRaplaServer(Integer.parseInt(port));
+
+            if (settings != null)
+                server.configure(settings);
+
+            server.start();
+            System.out.println("Fake rapla server running: " + server.getCalendarUri("test"));
+
+            new CountDownLatch(1).await(); // serve until the process is killed
+        } catch (Exception e) {
+            System.err.println("Fake server failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a load test with the parsed command line options against the rapla link or a fake rapla server
+     */
+    private void runLoadTest()
+    {
+        LoadTest test = new LoadTest(timeFrom, timeUntil, parallelism);
+        test.setView(view);
+        test.setFilter(filter);
+
+        try {
+            if (raplaLinks.isEmpty())
+                System.out.println(test.runAgainstFakeServer(fakeServerSettings, extractionEngine));
+            else
+                System.out.println(test.run(raplaLinks.get(0).toURI(), createTransport(), extractionEngine));
+        } catch (Exception e) {
+            System.err.println("Load test failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Exports all calendars of the batch manifest with a shared transport and outputs statistics afterwards
+     */
+    private void runBatchExport()
+    {
+        try (RaplaTransport transport = createTransport()) {
+            BatchExport batchExport = new BatchExport(BatchExport.readManifest(batchManifest), transport, parallelism);
+
+            batchExport.setExtractionEngine(extractionEngine);
+            batchExport.setView(view);
+            batchExport.setFilter(filter);
+            batchExport.setMetrics(metrics);
+            batchExport.run();
+
+            System.out.println(batchExport.getBatchInfo());
+
+            if (batchExport.getCountFailedCalendars() > 0)
+                exitCode = 1;
+        } catch (Exception e) {
+            System.err.println("Batch export failed: " + e.getMessage());
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Serves calendars over HTTP until the program is stopped
+     */
+    private void runCalendarServer()
+    {
+        try (RaplaTransport transport = createTransport()) {
+            CalendarServer server = new CalendarServer(new InetSocketAddress(serverAddress, serverPort), transport,
+                    parallelism);
+
+            server.setExtractionEngine(extractionEngine);
+            server.setView(view);
+            server.setMetrics(metrics);
+            server.setRefreshInterval(refreshInterval);
+            server.setMaxCachedCalendars(serverCacheSize);
+            server.setAllowedHosts(allowedHosts);
+            server.start();
+
+            System.out.println("Serving calendars of " + allowedHosts + ": http://" + serverAddress.getHostAddress()
+                    + ":" + server.getPort() + "/calendar?link=...&from=...&until=...");
+
+            new CountDownLatch(1).await(); // serve until the process is killed
+        } catch (Exception e) {
+            System.err.println("Server failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Extracts the lessons from rapla with the parsed command line options and export them to CSV file
+     */
+    private void extractAndExportLessonsToCSV()
+    {
+        if (streaming) {
+            streamLessonsToCSV();
+            return;
+        }
+
+        if (sortMemory > 0 && mergeFiles == null && countShards == 0) {
+            sortAndExportLessons();
+            return;
+        }
+
+        if (mergeFiles != null && isConflictAnalysis()) {
+            if (!readLessonFiles())
+                return;
+        } else if (mergeFiles != null || countShards > 0) {
+            // with a memory budget, the parts are already merged into the output file
+            if (!mergeParts() || sortMemory > 0)
+                return;
+        } else if (snapshotFile != null && raplaLinks.isEmpty()) {
+            if (!loadSnapshot())
+                return;
+        } else if (shard != null) {
+            if (!extractShard())
+                return;
+        } else {
+            extractLessons();
+
+            if (exitCode != 0)
+                return;
+
+            if (snapshotFile != null)
+                saveSnapshot();
+        }
+
+        if (isConflictAnalysis()) {
+            analyzeConflicts();
+            return;
+        }
+
+        if (deltaFileName != null)
+            exportDelta();
+
+        exportLessonsToCSV();
+    }
+
+    /**
+     * Extracts the lessons from rapla and outputs statistics afterward. The lessons of several calendars are merged in
+     * date order and lessons contained in several calendars are kept only once.
+     */
+    private void extractLessons()
+    {
+        if (raplaLinks.size() > 1) {
+            extractMergedLessons();
+            return;
+        }
+
+        try (RaplaTransport transport = createTransport()) {
+            raplaReader = createRaplaReader(raplaLinks.get(0), transport);
+            extractedLessons = raplaReader.getLessonsFromRapla();
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            exitCode = 1;
+        }
+
+        // there's no reader if the transport couldn't be created or the link is invalid
+        if (raplaReader != null)
+            System.out.println(raplaReader.getExtractedLessonsInfo());
+    }
+
+    /**
+     * Extracts the lessons of all calendars one after another with a shared transport into one list without
+     * duplicates. If a calendar fails, no lessons are exported instead of an incomplete merge.
+     */
+    private void extractMergedLessons()
+    {
+        LessonStore mergedLessons = new LessonStore();
+        LessonDeduplicator deduplicator = new LessonDeduplicator(mergedLessons::add);
+
+        try (RaplaTransport transport = createTransport()) {
+            for (URL raplaLink : raplaLinks) {
+                raplaReader = createRaplaReader(raplaLink, transport);
+
+                try {
+                    raplaReader.streamLessonsFromRapla(deduplicator);
+                } finally {
+                    System.out.println(raplaLink + ": " + raplaReader.getExtractedLessonsInfo());
+                }
+            }
+
+            // stable sort, so lessons at the same time stay in the order of the calendars
+            mergedLessons.sort(LessonMerger.ORDER);
+            extractedLessons = mergedLessons;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            exitCode = 1;
+        }
+
+        printMergeInfo(deduplicator);
+    }
+
+    /**
+     * Extracts the lessons of the shard sorted by date, so the parts of all shards can be merged. A shard without weeks,
+     * as there are more shards than weeks, is exported without lessons.
+     *
+     * @return false if the extraction failed
+     */
+    private boolean extractShard()
+    {
+        if (timeFrom.isAfter(timeUntil)) {
+            System.out.println("Shard " + shard + " contains no week of the time period");
+            return true;
+        }
+
+        System.out.println("Shard " + shard + ": " + timeFrom + " until " + timeUntil);
+        extractLessons();
+
+        // the lessons of a week page are ordered by time slot, not by date
+        extractedLessons.sort(LessonMerger.ORDER);
+
+        return exitCode == 0;
+    }
+
+    /**
+     * Extracts the lessons of all calendars into a sorter, which spills sorted runs to temporary files next to the
+     * output file beyond the memory budget, and writes them merged by date, time and title into the CSV file. Lessons
+     * contained in several calendars are kept once.
+     */
+    private void sortAndExportLessons()
+    {
+        Path outputFile = Paths.get(exportFileName);
+
+        if (shard != null)
+            System.out.println("Shard " + shard + ": " + timeFrom + " until " + timeUntil);
+
+        try (RaplaTransport transport = createTransport();
+             LessonSorter sorter = new LessonSorter(sortMemory, outputFile.toAbsolutePath().getParent())) {
+            LessonDeduplicator deduplicator = new LessonDeduplicator(sorter);
+            LessonSink sink = raplaLinks.size() > 1 ? deduplicator : sorter;
+
+            for (URL raplaLink : raplaLinks) {
+                raplaReader = createRaplaReader(raplaLink, transport);
+
+                try {
+                    raplaReader.streamLessonsFromRapla(sink);
+                } finally {
+                    System.out.println((raplaLinks.size() > 1 ? raplaLink + ": " : "")
+                            + raplaReader.getExtractedLessonsInfo());
+                }
+            }
+
+            if (raplaLinks.size() > 1)
+                printMergeInfo(deduplicator);
+
+            // a shard may have no lessons, but its part is still needed for the merge
+            if (sorter.getCountLessons() == 0 && shard == null)
+                throw new Exception("0 Lessons extracted, so nothing to export");
+
+            try (OutputStream out = GzipFiles.newOutputStream(outputFile);
+                 CsvLessonWriter writer = new CsvLessonWriter(out)) {
+                sorter.writeSorted(writer);
+            }
+
+            metrics.count("rapla_sort_runs_total", sorter.getCountRuns());
+            System.out.println(sorter.getCountLessons() + " lessons sorted in " + sorter.getCountRuns()
+                    + " spilled runs");
+            System.out.println("Export done: " + exportFileName);
+            deleteJournals();
+        } catch (Exception e) {
+            System.err.println("Export failed: " + e.getMessage());
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Merges sorted part files into the extracted lessons, lessons contained in several parts are kept once. With
+     * --shards the parts are created by local worker processes first, in a temporary directory next to the output file.
+     * With a memory budget, the parts are merged straight into the output file instead.
+     *
+     * @return false if a part couldn't be created or read
+     */
+    private boolean mergeParts()
+    {
+        Path partDirectory = null;
+
+        try {
+            List<Path> partFiles = mergeFiles;
+
+            if (countShards > 0) {
+                Path outputDirectory = Paths.get(exportFileName).toAbsolutePath().getParent();
+                partDirectory = Files.createTempDirectory(outputDirectory, ".rapla2csv-shards");
+                partFiles = new ShardedExport(commandLineArguments, countShards, parallelism, maxRate)
+                        .run(partDirectory);
+            }
+
+            LessonStore mergedLessons = new LessonStore();
+
+            // with a memory budget, the sorted parts are merged straight into the output file
+            try (OutputStream out = sortMemory > 0 ? GzipFiles.newOutputStream(Paths.get(exportFileName)) : null;
+                 CsvLessonWriter writer = out != null ? new CsvLessonWriter(out) : null) {
+                LessonDeduplicator deduplicator = new LessonDeduplicator(
+                        writer != null ? writer : mergedLessons::add);
+                LessonMerger.merge(partFiles, deduplicator);
+                int countMergedLessons = writer != null ? writer.getCountLessons() : mergedLessons.size();
+
+                metrics.count("rapla_duplicate_lessons_total", deduplicator.getCountDuplicates());
+                System.out.println(partFiles.size() + " parts merged, " + countMergedLessons + " lessons, "
+                        + deduplicator.getCountDuplicates() + " duplicate lessons dropped");
+            }
+
+            extractedLessons = mergedLessons;
+
+            if (sortMemory > 0)
+                System.out.println("Export done: " + exportFileName);
+
+            return true;
+        } catch (Exception e) {
+            System.err.println("Merge failed: " + e.getMessage());
+            exitCode = 1;
+
+            return false;
+        } finally {
+            if (partDirectory != null)
+                ShardedExport.deleteParts(partDirectory);
+        }
+    }
+
+    /**
+     * Reads the lessons of CSV files for the conflict analysis, which don't need to be sorted. Lessons contained in
+     * several files are kept once, only those within the time period and matching the filter if given.
+     *
+     * @return false if a file couldn't be read
+     */
+    private boolean readLessonFiles()
     {
         try {
-            raplaReader.exportToCSV(exportFileName);
+            LessonStore lessons = new LessonStore();
+            LessonDeduplicator deduplicator = new LessonDeduplicator(lessons::add);
+
+            for (Path file : mergeFiles) {
+                try (CsvLessonReader reader = new CsvLessonReader(file)) {
+                    for (Lesson lesson = reader.read(); lesson != null; lesson = reader.read())
+                        if ((timeFrom == null || !lesson.getStartDate().isBefore(timeFrom))
+                                && (timeUntil == null || !lesson.getStartDate().isAfter(timeUntil))
+                                && filter.matches(lesson))
+                            deduplicator.accept(lesson);
+                }
+            }
+
+            extractedLessons = lessons;
+            System.out.println(mergeFiles.size() + " files read, " + lessons.size() + " lessons, "
+                    + deduplicator.getCountDuplicates() + " duplicate lessons dropped");
+
+            return true;
+        } catch (Exception e) {
+            System.err.println("Reading failed: " + e.getMessage());
+            exitCode = 1;
+
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the lessons are analyzed for conflicts instead of exporting them
+     *
+     * @return true if a conflict report or the occupation at a time was requested
+     */
+    private boolean isConflictAnalysis()
+    {
+        return conflictFileName != null || occupancyTime != null;
+    }
+
+    /**
+     * Analyzes the extracted lessons for double-booked rooms and professors, prints the occupation at the requested
+     * time and saves the conflicts into the report file
+     */
+    private void analyzeConflicts()
+    {
+        try {
+            ConflictReport report = new ConflictReport(extractedLessons);
+
+            metrics.count("rapla_conflicts_total", "resource", "room", report.getRoomConflicts().size());
+            metrics.count("rapla_conflicts_total", "resource", "professor", report.getProfessorConflicts().size());
+            System.out.println(report.getConflictInfo());
+
+            if (occupancyTime != null) {
+                printOccupancy("Room", report.getRoomsAt(occupancyTime));
+                printOccupancy("Professor", report.getProfessorsAt(occupancyTime));
+            }
+
+            if (conflictFileName != null) {
+                try (OutputStream out = GzipFiles.newOutputStream(Paths.get(conflictFileName))) {
+                    report.write(out);
+                }
+
+                System.out.println("Conflict report done: " + conflictFileName);
+            }
+
+            deleteJournals();
+        } catch (Exception e) {
+            System.err.println("Conflict analysis failed: " + e.getMessage());
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Outputs the lessons taking place at the requested time, one line per lesson
+     *
+     * @param type              type of the resources, e.g. "Room"
+     * @param lessonsByResource lessons by name of the resource
+     */
+    private void printOccupancy(String type, Map<String, List<Lesson>> lessonsByResource)
+    {
+        System.out.println(lessonsByResource.size() + " " + type.toLowerCase() + "s occupied at " + occupancyTime);
+
+        lessonsByResource.forEach((resource, lessons) -> {
+            for (Lesson lesson : lessons)
+                System.out.println(type + " " + resource + ": " + lesson.getTitle() + " " + lesson.getStartTime()
+                        + "-" + lesson.getEndTime());
+        });
+    }
+
+    /**
+     * Creates a reader for a calendar with the parsed command line options
+     *
+     * @param raplaLink link to the calendar
+     * @param transport transport for requesting the rapla web pages, shared by all readers of the run
+     * @return the reader
+     * @throws URISyntaxException if the link is no valid URI
+     * @throws IOException        if the link is no valid URL or the checkpoint journal couldn't be read
+     */
+    private RaplaReader createRaplaReader(URL raplaLink, RaplaTransport transport)
+            throws URISyntaxException, IOException
+    {
+        RaplaReader reader = new RaplaReader(timeFrom, timeUntil, raplaLink);
+
+        reader.setTransport(transport);
+        reader.setParallelism(parallelism);
+        reader.setExtractionEngine(extractionEngine);
+        reader.setView(view);
+        reader.setFilter(filter);
+        reader.setMetrics(metrics);
+
+        if (checkpointDirectory != null) {
+            CheckpointJournal journal = CheckpointJournal.open(checkpointDirectory, raplaLink.toString(), timeFrom,
+                    timeUntil, view, filter);
+
+            if (journal.getCountCompletedPages() > 0)
+                System.out.println("Resuming after " + journal.getCountCompletedPages() + " completed pages of "
+                        + journal.getFile());
+
+            reader.setJournal(journal);
+            journals.add(journal);
+        }
+
+        return reader;
+    }
+
+    /**
+     * Outputs the number of duplicate lessons dropped while merging the calendars
+     *
+     * @param deduplicator deduplicator of the merge
+     */
+    private void printMergeInfo(LessonDeduplicator deduplicator)
+    {
+        metrics.count("rapla_duplicate_lessons_total", deduplicator.getCountDuplicates());
+        System.out.println(raplaLinks.size() + " calendars merged, " + deduplicator.getCountDuplicates()
+                + " duplicate lessons dropped");
+    }
+
+    /**
+     * Loads the lessons out of the snapshot file, only those within the time period and matching the filter if given
+     *
+     * @return false if the snapshot couldn't be loaded
+     */
+    private boolean loadSnapshot()
+    {
+        try {
+            LessonSnapshot snapshot = LessonSnapshot.open(snapshotFile);
+
+            if (timeFrom == null && timeUntil == null && filter.isEmpty()) {
+                extractedLessons = snapshot;
+            } else {
+                extractedLessons = new LessonStore();
+
+                for (Lesson lesson : snapshot)
+                    if ((timeFrom == null || !lesson.getStartDate().isBefore(timeFrom))
+                            && (timeUntil == null || !lesson.getStartDate().isAfter(timeUntil))
+                            && filter.matches(lesson))
+                        extractedLessons.add(lesson);
+            }
+
+            System.out.println(extractedLessons.size() + " lessons loaded from snapshot " + snapshotFile);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Loading snapshot failed: " + e.getMessage());
+            exitCode = 1;
+            return false;
+        }
+    }
+
+    /**
+     * Saves the extracted lessons into the snapshot file
+     */
+    private void saveSnapshot()
+    {
+        try {
+            LessonSnapshot.write(extractedLessons, snapshotFile);
+            System.out.println("Snapshot saved: " + snapshotFile);
+        } catch (Exception e) {
+            System.err.println("Saving snapshot failed: " + e.getMessage());
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Extracts the lessons from rapla and writes them to the CSV file while the extraction is still running. Several
+     * calendars are written one after another, lessons contained in several calendars only once.
+     */
+    private void streamLessonsToCSV()
+    {
+        boolean toStandardOutput = exportFileName.equals("-");
+        PrintStream standardOutput = System.out;
+
+        // keep standard output free for the CSV content, all messages go to standard error
+        if (toStandardOutput)
+            System.setOut(System.err);
+
+        try (RaplaTransport transport = createTransport();
+             OutputStream out = toStandardOutput ? (gzip ? GzipFiles.compress(standardOutput) : standardOutput)
+                     : GzipFiles.newOutputStream(Paths.get(exportFileName));
+             CsvLessonWriter writer = new CsvLessonWriter(out)) {
+            LessonDeduplicator deduplicator = new LessonDeduplicator(writer);
+            LessonSink sink = raplaLinks.size() > 1 ? deduplicator : writer;
+
+            for (URL raplaLink : raplaLinks) {
+                raplaReader = createRaplaReader(raplaLink, transport);
+                raplaReader.streamLessonsFromRapla(sink);
+
+                System.out.println((raplaLinks.size() > 1 ? raplaLink + ": " : "")
+                        + raplaReader.getExtractedLessonsInfo());
+            }
+
+            if (raplaLinks.size() > 1)
+                printMergeInfo(deduplicator);
+
+            System.out.println("Export done: " + exportFileName);
+            deleteJournals();
+        } catch (Exception e) {
+            System.err.println("Export failed: " + e.getMessage());
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Deletes the checkpoint journals after the export was completed, so the next export requests all pages again
+     *
+     * @throws IOException if a journal couldn't be deleted
+     */
+    private void deleteJournals() throws IOException
+    {
+        for (CheckpointJournal journal : journals)
+            journal.delete();
+
+        journals.clear();
+    }
+
+    /**
+     * Creates the transport for requesting the rapla web pages with the proxy, rate limit and cache settings. Cached
+     * pages don't count against the rate limit.
+     *
+     * @return transport for the rapla reader
+     * @throws IOException if the cache directory couldn't be used
+     */
+    private RaplaTransport createTransport() throws IOException
+    {
+        PooledHttpTransport httpTransport = new PooledHttpTransport(proxy, parallelism);
+        GovernedTransport governedTransport = new GovernedTransport(httpTransport, parallelism);
+        governedTransport.setMaxRate(maxRate);
+        governedTransport.setMaxRetries(maxRetries);
+        governedTransport.setMetrics(metrics);
+        httpTransport.setMetrics(metrics);
+
+        RaplaTransport transport = governedTransport;
+
+        if (cacheDirectory != null)
+            transport = new DiskCacheTransport(transport, cacheDirectory);
+
+        return transport;
+    }
+
+    /**
+     * Compares the extracted lessons with the lessons of the previous export in the output file and exports the changes.
+     * If there's no previous export, all lessons are added.
+     */
+    private void exportDelta()
+    {
+        try {
+            Path previousExport = Paths.get(exportFileName);
+            List<Lesson> previousLessons = Files.exists(previousExport)
+                    ? LessonCsv.read(previousExport) : new ArrayList<>();
+
+            LessonDelta delta = new LessonDelta(previousLessons, extractedLessons);
+            delta.export(deltaFileName);
+
+            System.out.println(delta.getDeltaInfo());
+            System.out.println("Delta export done: " + deltaFileName);
+        } catch (Exception e) {
+            System.err.println("Delta export failed: " + e.getMessage());
+            exitCode = 1;
+        }
+    }
+
+    /**
+     * Exports the extracted lessons to a CSV or iCalendar file (by file extension) for import into calendar software
+     */
+    private void exportLessonsToCSV()
+    {
+        try {
+            // a shard may have no lessons, but its part is still needed for the merge
+            if (extractedLessons.isEmpty() && shard == null)
+                throw new Exception("0 Lessons extracted, so nothing to export");
+
+            // lessons may come from a snapshot without a rapla reader
+            try (OutputStream out = GzipFiles.newOutputStream(Paths.get(exportFileName))) {
+                if (isIcsFileName(exportFileName))
+                    new IcsExporter(extractedLessons).write(out);
+                else
+                    writeCsv(extractedLessons, out);
+            }
+
             System.out.println("Export done: " + exportFileName);
+            deleteJournals();
         } catch (Exception e) {
             System.err.println("Export failed: " + e.getMessage());
+            exitCode = 1;
         }
     }
 }
@@ -0,0 +1,55 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.jsoup.HttpStatusException;
+
+/**
+ * Error status of the rapla server, including the time the server asked to wait before the next request
+ */
+public class RaplaHttpException extends HttpStatusException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Time to wait before the next request in milliseconds, -1 if the server didn't ask to wait
+     */
+    private final long retryAfterMillis;
+
+
+    /**
+     * Constructs a new exception
+     *
+     * @param statusCode       HTTP status code of the response
+     * @param url              requested link
+     * @param retryAfterMillis time to wait before the next request in milliseconds, -1 if not given by the server
+     */
+    public RaplaHttpException(int statusCode, String url, long retryAfterMillis)
+    {
+        super("HTTP error fetching URL. Status=" + statusCode + ", URL=" + url, statusCode, url);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis()
+    {
+        return retryAfterMillis;
+    }
+
+    /**
+     * Checks if the server is overloaded or limits the requests, so the request may succeed later
+     *
+     * @return true for status 429 (too many requests) and 503 (service unavailable)
+     */
+    public boolean isThrottled()
+    {
+        return getStatusCode() == 429 || getStatusCode() == 503;
+    }
+
+    /**
+     * Checks if the request may succeed when sent again
+     *
+     * @return true for throttling and temporary server or gateway errors
+     */
+    public boolean isTransient()
+    {
+        return isThrottled() || getStatusCode() == 500 || getStatusCode() == 502 || getStatusCode() == 504;
+    }
+}
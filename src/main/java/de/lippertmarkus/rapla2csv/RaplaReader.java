@@ -3,30 +3,38 @@ package de.lippertmarkus.rapla2csv;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URIBuilder;
-import org.jsoup.Connection;
-import org.jsoup.Jsoup;
+import org.jsoup.HttpStatusException;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import javax.print.DocFlavor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.time.DateTimeException;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
-import java.time.LocalTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 /**
  * Class for extracting lessons/appointments from a rapla web calendar.
  */
 public class RaplaReader
 {
+    /**
+     * Logger for details of the extraction, like skipped lessons
+     */
+    private static final Logger LOGGER = Logger.getLogger(RaplaReader.class.getName());
+
     /**
      * Begin of the extraction date range
      */
@@ -38,19 +46,64 @@ public class RaplaReader
     private LocalDate dateUntil;
 
     /**
-     * Link to the rapla web calendar view with a key or a user and file
+     * Cleaned link to the rapla web calendar view with a key or a user and file, without date parameters
      */
-    private URIBuilder raplaLink;
+    private URI raplaLink;
 
     /**
      * Proxy setting if provided
      */
     private Proxy proxy;
 
+    /**
+     * Maximum number of pages which are requested from rapla at the same time
+     */
+    private int parallelism = 1;
+
+    /**
+     * Way of finding the lesson information in the rapla web pages
+     */
+    private ExtractionEngine extractionEngine = ExtractionEngine.DOM;
+
+    /**
+     * View of the requested rapla web pages
+     */
+    private CalendarView view = CalendarView.AUTO;
+
+    /**
+     * Selection of the lessons to extract
+     */
+    private LessonFilter filter = LessonFilter.ALL;
+
+    /**
+     * Transport for requesting the rapla web pages, created on extraction if not set
+     */
+    private RaplaTransport transport;
+
+    /**
+     * Whether the transport was created by this reader and has to be closed after extraction
+     */
+    private boolean ownsTransport = false;
+
+    /**
+     * Workers for requesting and extracting the pages, shared with other readers, may null
+     */
+    private ExecutorService executor;
+
+    /**
+     * Receiver of the measurements of the extraction
+     */
+    private MetricsRegistry metrics = MetricsRegistry.NONE;
+
+    /**
+     * Journal of the completed pages for resuming an interrupted extraction, null for none
+     */
+    private CheckpointJournal journal;
+
     /**
      * List of the extracted lessons
      */
-    private List<Lesson> extractedLessons = new ArrayList<>();
+    private LessonStore extractedLessons = new LessonStore();
 
     /**
      * Counter for all processed lessons while extraction
@@ -116,13 +169,112 @@ public class RaplaReader
     {
         dateFrom = from;
         dateUntil = until;
-        this.raplaLink = prepareRaplaUri(raplaLink);
+
+        try {
+            this.raplaLink = prepareRaplaUri(raplaLink).build();
+        } catch (URISyntaxException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
     }
 
     public void setProxy(Proxy proxy) {
         this.proxy = proxy;
     }
 
+    /**
+     * Sets the maximum number of pages which are requested from rapla concurrently. The extracted lessons are in date
+     * order regardless of this setting.
+     *
+     * @param parallelism number of concurrent page requests, at least 1
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the way of finding the lesson information in the rapla web pages. All engines extract the same lessons.
+     *
+     * @param extractionEngine engine to use
+     */
+    public void setExtractionEngine(ExtractionEngine extractionEngine)
+    {
+        this.extractionEngine = extractionEngine;
+    }
+
+    /**
+     * Sets the view of the requested rapla web pages. The month view needs about a quarter of the requests of the week
+     * view, but isn't provided by every server. The automatic view uses the month view if the server answers the first
+     * request for a month page with one, else the week view.
+     *
+     * @param view view to use
+     */
+    public void setView(CalendarView view)
+    {
+        this.view = view;
+    }
+
+    /**
+     * Sets the selection of the lessons to extract. The filter is checked while extracting, so fields of other
+     * lessons are mostly not extracted at all, and with the streaming engine most other tooltips aren't even parsed.
+     *
+     * @param filter lessons to extract
+     */
+    public void setFilter(LessonFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Sets the transport for requesting the rapla web pages. The transport isn't closed by the reader, so it can be
+     * shared between several readers. If no transport is set, a pooled HTTP transport using the proxy setting is
+     * created for the extraction.
+     *
+     * @param transport transport to use
+     */
+    public void setTransport(RaplaTransport transport)
+    {
+        this.transport = transport;
+        this.ownsTransport = false;
+    }
+
+    /**
+     * Sets the workers for requesting and extracting the pages. The executor isn't shut down by the reader, so it can
+     * be shared between several readers to limit the number of concurrent requests of all of them. If no executor is
+     * set, an own one with the set parallelism is used for the extraction.
+     *
+     * @param executor executor to use
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the receiver of the measurements of the extraction, like fetch latency, downloaded bytes, parse time and
+     * skipped lessons by reason. The registry can be shared between several readers.
+     *
+     * @param metrics registry to use
+     */
+    public void setMetrics(MetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the journal of completed pages. Pages completed by a previous run are taken out of the journal instead of
+     * requesting them, newly extracted pages are appended before they're passed on.
+     *
+     * @param journal journal of this extraction
+     */
+    public void setJournal(CheckpointJournal journal)
+    {
+        this.journal = journal;
+    }
+
     /**
      * Looks for necessary GET-Parameters in rapla URL (key OR combination of page, user & file) and remove other
      * parameters (which can cause errors with Jsoup later). Key parameter is prefered when both is provided
@@ -188,43 +340,263 @@ public class RaplaReader
     }
 
     /**
-     * Extracts all lessons within the given time range from the rapla web calendar.
+     * Extracts all lessons within the given time range from the rapla web calendar. Up to the set parallelism pages
+     * are requested at the same time, the lessons are added in date order afterwards.
      *
      * @return list of the extracted lessons
      * @throws IOException if connection to rapla uri couldn't be established
      */
-    public List<Lesson> getLessonsFromRapla() throws IOException
+    public LessonStore getLessonsFromRapla() throws IOException
     {
-        // rapla web page always show whole week, so we'll go along the mondays
-        LocalDate currentWeekMondayDate = dateFrom.with(DayOfWeek.MONDAY);
+        streamLessonsFromRapla(extractedLessons::add);
 
-        while (dateIsBeforeUntilDate(currentWeekMondayDate)) {
-            Elements allLessonsOfWeekAsHtml = getAllLessonsOfWeekAsHtmlWithMondayDate(currentWeekMondayDate);
+        return extractedLessons;
+    }
 
-            for (Element lessonHtmlElement : allLessonsOfWeekAsHtml) {
-                Lesson extractedLesson;
+    /**
+     * Extracts all lessons within the given time range from the rapla web calendar and passes them to the sink as
+     * soon as their page is extracted. Lessons are passed in date order. Up to the set parallelism pages are requested
+     * at the same time and only a bounded number of extracted pages waits for the sink, so the memory usage doesn't
+     * depend on the length of the time range.
+     *
+     * @param sink receiver of the extracted lessons
+     * @throws IOException if connection to rapla uri couldn't be established or the sink failed
+     */
+    public void streamLessonsFromRapla(LessonSink sink) throws IOException
+    {
+        // rapla web pages always show whole weeks or months, so there's no page if the range ends before a monday
+        if (!dateIsBeforeUntilDate(dateFrom.with(DayOfWeek.MONDAY)))
+            return;
+
+        // own transports are closed after extraction, so a new one is needed for every extraction
+        if (transport == null || ownsTransport) {
+            transport = new PooledHttpTransport(proxy, parallelism);
+            ownsTransport = true;
+        }
 
-                try {
-                    extractedLesson = extractLessonFromHtmlElement(currentWeekMondayDate, lessonHtmlElement);
-                } catch (Exception e) {
-                    System.out.println("Skipped: " + e.getMessage());
-                    countSkippedLessons++;
-                    continue;
+        boolean ownsExecutor = executor == null;
+        ExecutorService executor = this.executor;
+
+        // pages which are requested or extracted but not passed to the sink yet, in date order
+        Deque<Future<PageResult>> pendingPages = new ArrayDeque<>();
+        int maxPendingPages = parallelism * 2;
+        long startTime = System.nanoTime();
+        int countExtractedLessons = 0;
+
+        try {
+            // a resumed extraction keeps the view of its completed pages, else the view detected by a previous
+            // extraction is used if the transport knows it
+            CalendarView resumedView = journal != null ? journal.getView() : null;
+            CalendarView detectView = view != CalendarView.AUTO ? view
+                    : resumedView != null ? resumedView : transport.getKnownView(raplaLink);
+
+            // the page requested for detecting the view is the first page of the extraction in both views
+            ViewProbe probe = detectView == null ? probeMonthView() : null;
+            RaplaResponse firstPage = probe != null ? probe.page : null;
+            CalendarView pageView = detectView != null ? detectView
+                    : firstPage != null && isMonthPage(firstPage) ? CalendarView.MONTH : CalendarView.WEEK;
+
+            if (probe != null && probe.conclusive)
+                transport.setKnownView(raplaLink, pageView);
+            List<LocalDate> pageStartDates = getPageStartDatesWithinRange(pageView);
+            Iterator<LocalDate> nextPageStartDates = pageStartDates.iterator();
+
+            LOGGER.fine(() -> "Extracting " + pageStartDates.size() + " pages in " + pageView + " view");
+
+            if (ownsExecutor)
+                executor = Executors.newFixedThreadPool(Math.min(parallelism, pageStartDates.size()));
+
+            while (nextPageStartDates.hasNext() || !pendingPages.isEmpty()) {
+                // keep the workers busy, but don't run ahead of the sink too far
+                while (nextPageStartDates.hasNext() && pendingPages.size() < maxPendingPages) {
+                    LocalDate pageStart = nextPageStartDates.next();
+                    RaplaResponse fetchedPage = firstPage;
+                    PageResult resumedPage = takeResumedPage(pageStart);
+
+                    pendingPages.add(resumedPage != null ? CompletableFuture.completedFuture(resumedPage)
+                            : executor.submit(() -> extractLessonsOfPage(pageView, pageStart, fetchedPage)));
+                    firstPage = null;
                 }
 
-                // skip lessons which aren't within date range
-                if (extractedLesson == null)
-                    continue;
+                // pass the oldest page to the sink to keep the lessons sorted by date
+                PageResult result = waitForPageResult(pendingPages.poll());
+
+                // the page is journaled before the sink gets it, so the sink never gets a page twice after a restart
+                if (journal != null && !result.resumed)
+                    journal.append(result.pageStart, pageView, result.lessons, result.skippedLessons);
+
+                countLessons += result.lessons.size();
+                countSkippedLessons += result.skippedLessons;
+                countExtractedLessons += result.lessons.size();
+
+                for (Lesson lesson : result.lessons)
+                    sink.accept(lesson);
+
+                sink.flush();
+            }
 
-                countLessons++;
-                extractedLessons.add(extractedLesson);
+            double duration = (System.nanoTime() - startTime) / 1e9;
+            metrics.gauge("rapla_extraction_seconds", duration);
+            metrics.gauge("rapla_lessons_per_second", duration > 0 ? countExtractedLessons / duration : 0);
+        } finally {
+            if (ownsExecutor) {
+                if (executor != null)
+                    executor.shutdownNow();
+            } else {
+                // pages of a shared executor must not keep running for a failed extraction
+                for (Future<PageResult> pendingPage : pendingPages)
+                    pendingPage.cancel(true);
             }
 
-            // goto next week
-            currentWeekMondayDate = currentWeekMondayDate.plusWeeks(1);
+            if (ownsTransport)
+                transport.close();
         }
+    }
 
-        return extractedLessons;
+    /**
+     * Gets the first days of all pages of a view touching the set date range
+     *
+     * @param view week or month view
+     * @return list of the first days in ascending order
+     */
+    private List<LocalDate> getPageStartDatesWithinRange(CalendarView view)
+    {
+        List<LocalDate> pageStartDates = new ArrayList<>();
+
+        // rapla web page always show whole weeks or months, so we'll go along their first days
+        for (LocalDate pageStart = view.getPageStart(dateFrom); dateIsBeforeUntilDate(pageStart);
+             pageStart = view.getNextPageStart(pageStart))
+            pageStartDates.add(pageStart);
+
+        return pageStartDates;
+    }
+
+    /**
+     * Takes a page completed by a previous run out of the journal
+     *
+     * @param pageStart first day of the page
+     * @return lessons of the page or null if the page has to be requested
+     */
+    private PageResult takeResumedPage(LocalDate pageStart)
+    {
+        CheckpointJournal.Page page = journal != null ? journal.takeCompletedPage(pageStart) : null;
+
+        if (page == null)
+            return null;
+
+        PageResult result = new PageResult(pageStart);
+        result.lessons.addAll(page.getLessons());
+        result.skippedLessons = page.getSkippedLessons();
+        result.resumed = true;
+
+        metrics.count("rapla_pages_resumed_total", 1);
+
+        return result;
+    }
+
+    /**
+     * Waits for the extraction of a page to finish
+     *
+     * @param pageResult pending result of the page extraction
+     * @return lessons of the page
+     * @throws IOException if the page couldn't be requested from rapla or waiting was interrupted
+     */
+    private PageResult waitForPageResult(Future<PageResult> pageResult) throws IOException
+    {
+        try {
+            return pageResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Extraction was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Extracts all lessons of a single page which are within the set date range
+     *
+     * @param view        week or month view
+     * @param pageStart   first day of the page
+     * @param fetchedPage the page if it was already requested, else null
+     * @return extracted lessons and number of skipped lessons of the page
+     * @throws IOException if connection to rapla uri couldn't be established
+     */
+    private PageResult extractLessonsOfPage(CalendarView view, LocalDate pageStart, RaplaResponse fetchedPage)
+            throws IOException
+    {
+        PageResult result = new PageResult(pageStart);
+        RaplaResponse response = fetchedPage != null ? fetchedPage : fetchPage(view, pageStart);
+
+        for (Element lessonHtmlElement : getAllLessonsOfPageAsHtml(response)) {
+            Lesson extractedLesson;
+
+            try {
+                LocalDate weekMondayDate = view == CalendarView.MONTH
+                        ? getMondayDateOfMonthCell(pageStart, lessonHtmlElement) : pageStart;
+                extractedLesson = extractLessonFromHtmlElement(weekMondayDate, lessonHtmlElement);
+            } catch (Exception e) {
+                metrics.count("rapla_lessons_skipped_total", "reason", getSkipReason(e), 1);
+                LOGGER.fine(() -> "Skipped: " + e.getMessage());
+                result.skippedLessons++;
+                continue;
+            }
+
+            // skip lessons which aren't within date range
+            if (extractedLesson == null)
+                continue;
+
+            result.lessons.add(extractedLesson);
+        }
+
+        metrics.count("rapla_pages_total", "view", view.name().toLowerCase(), 1);
+        metrics.count("rapla_lessons_extracted_total", result.lessons.size());
+        LOGGER.finer(() -> "Page " + pageStart + ": " + result.lessons.size() + " lessons extracted, "
+                + result.skippedLessons + " skipped");
+
+        return result;
+    }
+
+    /**
+     * Gets the monday of the week containing the cell of a lesson on a month page
+     *
+     * @param monthStart first day of the month
+     * @param lesson     the HTML data of the lesson element with the day number of its cell
+     * @return monday date of the week of the cell
+     * @throws Exception if the lesson isn't inside a cell with a day number
+     */
+    private LocalDate getMondayDateOfMonthCell(LocalDate monthStart, Element lesson) throws Exception
+    {
+        String dayNumber = lesson.attr(CalendarView.DAY_ATTRIBUTE);
+
+        if (dayNumber.isEmpty())
+            throw new Exception("Day of lesson couldn't be determined on month page " + monthStart);
+
+        return monthStart.withDayOfMonth(Integer.parseInt(dayNumber)).with(DayOfWeek.MONDAY);
+    }
+
+    /**
+     * Gets the category of the error of a skipped lesson for the metrics
+     *
+     * @param e error while extracting the lesson
+     * @return name of the category
+     */
+    private static String getSkipReason(Exception e)
+    {
+        if (e instanceof IndexOutOfBoundsException)
+            return "missing_fields";
+        if (e instanceof DateTimeException)
+            return "invalid_time";
+        if (e instanceof RuntimeException)
+            return "other";
+
+        // checked exceptions are thrown for a missing weekday, time or day number
+        return "missing_day_time";
     }
 
     /**
@@ -234,21 +606,124 @@ public class RaplaReader
      * @return all HTML elements of all lessons
      * @throws IOException if a connection to the rapla URI couldn't be established
      */
-    private Elements getAllLessonsOfWeekAsHtmlWithMondayDate(LocalDate weekMondayDate) throws IOException
+    Elements getAllLessonsOfWeekAsHtmlWithMondayDate(LocalDate weekMondayDate) throws IOException
+    {
+        return getAllLessonsOfPageAsHtml(fetchPage(CalendarView.WEEK, weekMondayDate));
+    }
+
+    /**
+     * Requests a page from rapla
+     *
+     * @param view week or month view
+     * @param date date on the page
+     * @return the page
+     * @throws IOException if a connection to the rapla URI couldn't be established
+     */
+    private RaplaResponse fetchPage(CalendarView view, LocalDate date) throws IOException
+    {
+        long fetchStart = System.nanoTime();
+        RaplaResponse response = transport.fetch(getRaplaUriForPage(view, date));
+
+        metrics.observe("rapla_page_fetch_seconds", (System.nanoTime() - fetchStart) / 1e9);
+        metrics.observe("rapla_page_size_bytes", response.getBody().length);
+
+        return response;
+    }
+
+    /**
+     * Requests the first page of the extraction in the month view for detecting the view. Servers which don't know the
+     * view parameter may answer with an error status instead of a week page, then the week view is used and nothing of
+     * the failed request is reused.
+     *
+     * @return the requested page, without page if the server answered with an error status
+     * @throws IOException if the page couldn't be requested for another reason
+     */
+    private ViewProbe probeMonthView() throws IOException
     {
-        setRaplaUrlDateParameters(weekMondayDate, raplaLink);
+        try {
+            return new ViewProbe(fetchPage(CalendarView.MONTH, dateFrom), true);
+        } catch (HttpStatusException e) {
+            LOGGER.fine(() -> "Month view not available, using week view: " + e.getMessage());
 
-        Connection raplaConnection = Jsoup.connect(raplaLink.toString());
+            // client errors are answered the same way next time, server errors may have been temporary
+            return new ViewProbe(null, e.getStatusCode() >= 400 && e.getStatusCode() < 500);
+        }
+    }
 
-        // set proxy if provided
-        if(proxy != null)
-            raplaConnection.proxy(proxy);
+    /**
+     * Checks if a page is a month page by looking for the day numbers of its cells. Servers without month view answer
+     * requests for it with a week page.
+     *
+     * @param response rapla page
+     * @return true for a month page
+     */
+    private static boolean isMonthPage(RaplaResponse response)
+    {
+        // class names are ASCII in every charset rapla uses
+        return new String(response.getBody(), StandardCharsets.ISO_8859_1).contains(CalendarView.DAY_NUMBER_CLASS);
+    }
 
-        // get HTML document for current week
-        Document doc = raplaConnection.get();
+    /**
+     * Gets all HTML elements with needed information of all lessons of a page. On month pages, the elements get the
+     * day number of their cell as attribute.
+     *
+     * @param response rapla page
+     * @return all HTML elements of all lessons
+     * @throws IOException if the page couldn't be decoded
+     */
+    private Elements getAllLessonsOfPageAsHtml(RaplaResponse response) throws IOException
+    {
+        long parseStart = System.nanoTime();
 
         // lessons information is inside span with CSS class .tooltip
-        return doc.select(".tooltip");
+        Elements lessons;
+        if (extractionEngine == ExtractionEngine.STREAMING) {
+            lessons = TooltipScanner.scan(response, filter, metrics);
+        } else {
+            Document doc = response.parse();
+            lessons = new Elements();
+
+            // in document order, so every tooltip follows the day number of its cell on month pages
+            String dayNumber = null;
+            for (Element element : doc.select("." + CalendarView.DAY_NUMBER_CLASS + ", .tooltip")) {
+                if (element.hasClass(CalendarView.DAY_NUMBER_CLASS)) {
+                    dayNumber = element.text().trim();
+                } else {
+                    if (dayNumber != null)
+                        element.attr(CalendarView.DAY_ATTRIBUTE, dayNumber);
+
+                    lessons.add(element);
+                }
+            }
+        }
+
+        metrics.observe("rapla_page_parse_seconds", (System.nanoTime() - parseStart) / 1e9);
+
+        return lessons;
+    }
+
+    /**
+     * Creates the link to the rapla web page of a week or month. Every page gets its own link, so pages can be
+     * requested concurrently
+     *
+     * @param view week or month view
+     * @param date date on the page
+     * @return rapla URI showing the page
+     * @throws MalformedURLException if the link couldn't be created
+     */
+    private URI getRaplaUriForPage(CalendarView view, LocalDate date) throws MalformedURLException
+    {
+        try {
+            URIBuilder pageUri = setRaplaUrlDateParameters(date, new URIBuilder(raplaLink));
+
+            // week pages keep the link without view, which every rapla server understands
+            if (view == CalendarView.MONTH)
+                pageUri.setParameter(CalendarView.PARAMETER, "month");
+
+            return pageUri.build();
+        } catch (URISyntaxException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
     }
 
     /**
@@ -267,44 +742,63 @@ public class RaplaReader
      *
      * @param weekMondayDate the monday date of the week the lesson is in
      * @param lesson         the HTML data of the lesson element
-     * @return a Lesson object or null if a lesson wasn't in the set date range
+     * @return a Lesson object or null if a lesson wasn't in the set date range or doesn't match the filter
      * @throws Exception if a lesson was skipped because of parsing errors
      */
-    private Lesson extractLessonFromHtmlElement(LocalDate weekMondayDate, Element lesson) throws Exception
+    Lesson extractLessonFromHtmlElement(LocalDate weekMondayDate, Element lesson) throws Exception
     {
-        // determine lesson data
+        // determine lesson data, the fields are checked against the filter from the cheapest to the most expensive
 
-        Elements data = lesson.select("td"); // get all td's with lesson info inside the tooltip
+        Elements data = lesson.getElementsByTag("td"); // get all td's with lesson info inside the tooltip
 
         String title = data.get(1).text(); // title of the lesson
-        String room = getRoomNameFromString(data.get(data.size() - 3).text()); // 2nd last td-element is the room
-        String prof = getProfessorNameFromString(data.get(data.size() - 1).text()); // last td-element is professor
+        Element roomData = data.get(data.size() - 3); // 2nd last td-element is the room
+        Element profData = data.get(data.size() - 1); // last td-element is professor
+
+        if (!filter.matchesTitle(title))
+            return rejectByFilter();
 
 
         // determine date and time of the lesson
 
         String dayTimeString = lesson.child(1).text(); // 2nd element contains weekday (German) and time
-        String weekDay;
-        LocalTime timeFrom;
-        LocalTime timeUntil;
 
         // extract weekday and time, e.g. "Mo 08:15-11:30 wöchentlich"
-        Pattern r = Pattern.compile("([a-zA-Z]{2}).* ([0-9:]*)-([0-9:]*)");
-        Matcher m = r.matcher(dayTimeString);
-        if (m.find()) {
-            weekDay = m.group(1);
-            timeFrom = LocalTime.parse(m.group(2));
-            timeUntil = LocalTime.parse(m.group(3));
-        } else throw new Exception("Weekday and/or time of lesson '" + title + "' couldn't be determined out " +
-                "of string '" + dayTimeString + "'. Week's monday date: " + weekMondayDate);
+        LessonFieldScanner.DayTime dayTime = LessonFieldScanner.scanDayTime(dayTimeString);
+        if (dayTime == null)
+            throw new Exception("Weekday and/or time of lesson '" + title + "' couldn't be determined out " +
+                    "of string '" + dayTimeString + "'. Week's monday date: " + weekMondayDate);
+
+        if (!filter.matchesDayTime(dayTime.getWeekday(), dayTime.getTimeFrom(), dayTime.getTimeUntil()))
+            return rejectByFilter();
 
         // get date from german (!) weekdays, check if date is within given range, else skip
-        LocalDate date = getDateByMondayDateAndWeekday(weekMondayDate, weekDay);
+        LocalDate date = getDateByMondayDateAndWeekday(weekMondayDate, dayTime.getWeekday());
         if (!dateIsWithinRange(date))
             return null;
 
+        String room = getRoomNameFromString(roomData.text());
+        if (!filter.matchesRoom(room))
+            return rejectByFilter();
+
+        String prof = getProfessorNameFromString(profData.text());
+        if (!filter.matchesProfessor(prof))
+            return rejectByFilter();
+
+
+        return new Lesson(title, date, date, dayTime.getTimeFrom(), dayTime.getTimeUntil(), prof, room);
+    }
+
+    /**
+     * Counts a lesson which doesn't match the filter
+     *
+     * @return null for skipping the lesson without error
+     */
+    private Lesson rejectByFilter()
+    {
+        metrics.count("rapla_lessons_filtered_total", "stage", "fields", 1);
 
-        return new Lesson(title, date, date, timeFrom, timeUntil, prof, room);
+        return null;
     }
 
     /**
@@ -326,21 +820,8 @@ public class RaplaReader
      */
     private String getRoomNameFromString(String input)
     {
-        String room = "";
-
-        Pattern pattern;
-        Matcher matcher;
-
         // extract room from all given resources TODO: generalize
-        pattern = Pattern.compile("(RB[^,]*)");
-        matcher = pattern.matcher(input);
-
-        if (matcher.find())
-            room = matcher.group(1);
-
-        System.out.println("room: " + room);
-
-        return room;
+        return LessonFieldScanner.scanRoom(input);
     }
 
     /**
@@ -351,18 +832,7 @@ public class RaplaReader
      */
     private String getProfessorNameFromString(String input)
     {
-        String prof = "";
-
-        Pattern pattern;
-        Matcher matcher;
-        pattern = Pattern.compile("^([^,]*), ([^,]*)"); // e.g. "Surname, Prename"
-
-        matcher = pattern.matcher(input);
-
-        if (matcher.find())
-            prof = matcher.group(2) + " " + matcher.group(1); // generate "Prename Surname"
-
-        return prof;
+        return LessonFieldScanner.scanProfessor(input); // e.g. "Surname, Prename" to "Prename Surname"
     }
 
     /**
@@ -383,32 +853,23 @@ public class RaplaReader
     }
 
     /**
-     * Returns the date of the given GERMAN weekday in the week starting with given monday date.
+     * Returns the date of the given weekday in the week starting with given monday date.
      *
      * @param mondayDate Date of the monday in the week
-     * @param weekday    Weekday which date to calculate
-     * @return date of the weekday in the week with the given monday date
-     */
-    private LocalDate getDateByMondayDateAndWeekday(LocalDate mondayDate, String weekday)
-    {
-        switch (weekday) {
-            case "Mo":
-                return mondayDate;
-            case "Di":
-                return mondayDate.plusDays(1);
-            case "Mi":
-                return mondayDate.plusDays(2);
-            case "Do":
-                return mondayDate.plusDays(3);
-            case "Fr":
-                return mondayDate.plusDays(4);
-            case "Sa":
-                return mondayDate.plusDays(5);
-            case "So":
-                return mondayDate.plusDays(6);
-            default:
-                return null;
-        }
+     * @param weekday    Weekday which date to calculate, may null
+     * @return date of the weekday in the week with the given monday date or null if no weekday is given
+     */
+    private LocalDate getDateByMondayDateAndWeekday(LocalDate mondayDate, DayOfWeek weekday)
+    {
+        if (weekday == null)
+            return null;
+
+        return mondayDate.plusDays(weekday.getValue() - DayOfWeek.MONDAY.getValue());
+    }
+
+    public int getCountSkippedLessons()
+    {
+        return countSkippedLessons;
     }
 
     /**
@@ -418,13 +879,18 @@ public class RaplaReader
      */
     public String getExtractedLessonsInfo()
     {
-        return (countLessons - countSkippedLessons) + " lessons extracted, " + countSkippedLessons + " lessons skipped";
+        String info = (countLessons - countSkippedLessons) + " lessons extracted, " + countSkippedLessons + " lessons skipped";
+
+        if (transport != null)
+            info += ", " + transport.getStatistics();
+
+        return info;
     }
 
     /**
      * Saves the extracted lessons to a CSV file to import into calendars like Google calendar or Outlook
      *
-     * @param filename name of the CSV file to create
+     * @param filename name of the CSV file to create, compressed with gzip for the extension .gz
      * @throws Exception if there's nothing to export or if the writing of the file failed
      */
     public void exportToCSV(String filename) throws Exception
@@ -432,19 +898,62 @@ public class RaplaReader
         if ((countLessons - countSkippedLessons) == 0)
             throw new Exception("0 Lessons extracted, so nothing to export");
 
-        // header for calendar CSV files
-        String fileContent = "Subject,Start Date,Start Time,End Date,End Time,Description,Location\r\n";
-
-        for (Lesson lesson : extractedLessons) {
-            fileContent += "\"" + lesson.getTitle() + "\","
-                    + lesson.getStartDate() + ","
-                    + lesson.getStartTime() + ","
-                    + lesson.getEndDate() + ","
-                    + lesson.getEndTime() + ","
-                    + "\"" + lesson.getProfessor() + "\","
-                    + "\"" + lesson.getRoom() + "\"\r\n";
+        try (CsvLessonWriter writer = new CsvLessonWriter(GzipFiles.newOutputStream(Paths.get(filename)))) {
+            for (Lesson lesson : extractedLessons)
+                writer.accept(lesson);
+        }
+    }
+
+    /**
+     * Lessons and skip count extracted from a single page
+     */
+    private static class PageResult
+    {
+        /**
+         * First day of the page
+         */
+        private final LocalDate pageStart;
+
+        /**
+         * Lessons of the page within the set date range
+         */
+        private final List<Lesson> lessons = new ArrayList<>();
+
+        /**
+         * Number of lessons of the page which couldn't be parsed
+         */
+        private int skippedLessons = 0;
+
+        /**
+         * Whether the page was taken out of the journal instead of requesting it
+         */
+        private boolean resumed = false;
+
+        private PageResult(LocalDate pageStart)
+        {
+            this.pageStart = pageStart;
         }
+    }
 
-        Files.write(Paths.get(filename), fileContent.getBytes());
+    /**
+     * Result of the request for detecting the view
+     */
+    private static class ViewProbe
+    {
+        /**
+         * Requested page, a month page if the server provides the month view, null if the request failed
+         */
+        private final RaplaResponse page;
+
+        /**
+         * Whether the detected view can be kept for following extractions
+         */
+        private final boolean conclusive;
+
+        private ViewProbe(RaplaResponse page, boolean conclusive)
+        {
+            this.page = page;
+            this.conclusive = conclusive;
+        }
     }
-}
\ No newline at end of file
+}
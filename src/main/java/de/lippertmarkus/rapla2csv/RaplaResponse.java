@@ -0,0 +1,129 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Response of a rapla server to a page request
+ */
+public class RaplaResponse
+{
+    /**
+     * Link of the requested page
+     */
+    private URI uri;
+
+    /**
+     * Raw content of the page
+     */
+    private byte[] body;
+
+    /**
+     * Charset given by the server, may null
+     */
+    private String charset;
+
+    /**
+     * Whether the server confirmed that the known version of the page is still valid
+     */
+    private boolean notModified;
+
+    /**
+     * Entity tag of the page given by the server, may null
+     */
+    private String eTag;
+
+    /**
+     * Last modification date of the page given by the server, may null
+     */
+    private String lastModified;
+
+    /**
+     * Constructs a new response
+     *
+     * @param uri     link of the requested page
+     * @param body    raw content of the page
+     * @param charset charset given by the server, null if unknown
+     */
+    public RaplaResponse(URI uri, byte[] body, String charset)
+    {
+        this(uri, body, charset, null, null);
+    }
+
+    /**
+     * Constructs a new response with validators for conditional requests
+     *
+     * @param uri          link of the requested page
+     * @param body         raw content of the page
+     * @param charset      charset given by the server, null if unknown
+     * @param eTag         entity tag of the page, null if unknown
+     * @param lastModified last modification date of the page, null if unknown
+     */
+    public RaplaResponse(URI uri, byte[] body, String charset, String eTag, String lastModified)
+    {
+        this.uri = uri;
+        this.body = body;
+        this.charset = charset;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Creates a response without content, stating that the known version of the page is still valid
+     *
+     * @param uri link of the requested page
+     * @return response which is not modified
+     */
+    public static RaplaResponse notModified(URI uri)
+    {
+        RaplaResponse response = new RaplaResponse(uri, new byte[0], null);
+        response.notModified = true;
+
+        return response;
+    }
+
+    public URI getUri()
+    {
+        return uri;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    public String getCharset()
+    {
+        return charset;
+    }
+
+    public boolean isNotModified()
+    {
+        return notModified;
+    }
+
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * Parses the page to a HTML document. If no charset was given by the server, it's detected from the page itself
+     *
+     * @return HTML document of the page
+     * @throws IOException if the page couldn't be decoded
+     */
+    public Document parse() throws IOException
+    {
+        return Jsoup.parse(new ByteArrayInputStream(body), charset, uri.toString());
+    }
+}
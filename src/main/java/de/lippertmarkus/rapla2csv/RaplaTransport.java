@@ -0,0 +1,66 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Transport used by the RaplaReader to request the web pages of a rapla calendar.
+ * Implementations have to be thread safe, as several weeks may be requested at the same time.
+ */
+public interface RaplaTransport extends Closeable
+{
+    /**
+     * Requests a rapla web page
+     *
+     * @param uri link of the page including all GET-parameters
+     * @return the response of the rapla server
+     * @throws IOException if the page couldn't be requested
+     */
+    RaplaResponse fetch(URI uri) throws IOException;
+
+    /**
+     * Requests a rapla web page only if it was modified since it was requested with the given validators. Transports
+     * which don't support conditional requests request the whole page.
+     *
+     * @param uri          link of the page including all GET-parameters
+     * @param eTag         entity tag of the known version of the page, may null
+     * @param lastModified last modification date of the known version of the page, may null
+     * @return the response of the rapla server, which is not modified if the known version is still valid
+     * @throws IOException if the page couldn't be requested
+     */
+    default RaplaResponse fetchIfModified(URI uri, String eTag, String lastModified) throws IOException
+    {
+        return fetch(uri);
+    }
+
+    /**
+     * Gets the view which was detected for a calendar by a previous extraction, so it doesn't need to be detected
+     * again. Transports which don't keep the views don't know any.
+     *
+     * @param raplaLink link of the calendar without date parameters
+     * @return week or month view, null if unknown
+     */
+    default CalendarView getKnownView(URI raplaLink)
+    {
+        return null;
+    }
+
+    /**
+     * Keeps the view which was detected for a calendar for following extractions, if the transport supports it
+     *
+     * @param raplaLink link of the calendar without date parameters
+     * @param view      week or month view
+     * @throws IOException if the view couldn't be kept
+     */
+    default void setKnownView(URI raplaLink, CalendarView view) throws IOException
+    {
+    }
+
+    /**
+     * Gets information about the requests done by this transport
+     *
+     * @return string with the information
+     */
+    String getStatistics();
+}
@@ -0,0 +1,129 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Part of an export time period for extracting it in several processes. The period is split into whole weeks starting
+ * on monday like the rapla pages, so no page is requested by two shards in the week view, and the weeks are
+ * distributed as evenly as possible: shard i of n gets the weeks from (i - 1) * weeks / n until i * weeks / n.
+ */
+public class Shard
+{
+    /**
+     * Number of the shard, starting with 1
+     */
+    private final int index;
+
+    /**
+     * Number of shards the time period is split into
+     */
+    private final int count;
+
+
+    /**
+     * Constructs a new shard
+     *
+     * @param index number of the shard, from 1 to count
+     * @param count number of shards
+     * @throws IllegalArgumentException if the number isn't within the count
+     */
+    public Shard(int index, int count)
+    {
+        if (count < 1 || index < 1 || index > count)
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parses a shard in format "number/count", e.g. "2/4" for the second of four shards
+     *
+     * @param input shard string
+     * @return the shard
+     * @throws IllegalArgumentException if the string isn't a valid shard
+     */
+    public static Shard parse(String input)
+    {
+        String[] parts = input.split("/");
+
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Shard must be given as number/count, e.g. 2/4");
+
+        return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+    }
+
+    /**
+     * Gets the first day of this shard within a time period
+     *
+     * @param from  begin of the whole time period
+     * @param until end of the whole time period
+     * @return first day of the shard, after the last day if the shard is empty
+     */
+    public LocalDate getFrom(LocalDate from, LocalDate until)
+    {
+        LocalDate shardStart = getWeekStart(from, until, index - 1);
+
+        return shardStart.isBefore(from) ? from : shardStart;
+    }
+
+    /**
+     * Gets the last day of this shard within a time period
+     *
+     * @param from  begin of the whole time period
+     * @param until end of the whole time period
+     * @return last day of the shard, before the first day if the shard is empty
+     */
+    public LocalDate getUntil(LocalDate from, LocalDate until)
+    {
+        LocalDate shardEnd = getWeekStart(from, until, index).minusDays(1);
+
+        return shardEnd.isAfter(until) ? until : shardEnd;
+    }
+
+    /**
+     * Checks if this shard gets no week of a time period, as there are fewer weeks than shards
+     *
+     * @param from  begin of the whole time period
+     * @param until end of the whole time period
+     * @return true if the shard is empty
+     */
+    public boolean isEmpty(LocalDate from, LocalDate until)
+    {
+        return getFrom(from, until).isAfter(getUntil(from, until));
+    }
+
+    /**
+     * Gets the monday of the first week of a shard
+     *
+     * @param from       begin of the whole time period
+     * @param until      end of the whole time period
+     * @param shardIndex index of the shard starting with 0, count for the end of the last shard
+     * @return monday date
+     */
+    private LocalDate getWeekStart(LocalDate from, LocalDate until, int shardIndex)
+    {
+        LocalDate firstMonday = from.with(DayOfWeek.MONDAY);
+        long weeks = until.isBefore(from) ? 0 : ChronoUnit.WEEKS.between(firstMonday, until.with(DayOfWeek.MONDAY)) + 1;
+
+        return firstMonday.plusWeeks(shardIndex * weeks / count);
+    }
+
+    public int getIndex()
+    {
+        return index;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return index + "/" + count;
+    }
+}
@@ -0,0 +1,188 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs an export as several worker processes on this machine, each extracting one shard of the time period into a
+ * sorted part file. The parts are merged afterwards with LessonMerger. On a cluster, the same parts can be created by
+ * running the program with --shard on several nodes and merged with --merge.
+ */
+public class ShardedExport
+{
+    /**
+     * Options with a value which aren't passed to the workers, as output, delta and metrics are written by the merging
+     * process
+     */
+    private static final List<String> PARENT_OPTIONS_WITH_ARGUMENT = Arrays.asList("-o", "--output", "-d", "--delta",
+            "--metrics", "--shards");
+
+    /**
+     * Options without a value which aren't passed to the workers, as the part files are always compressed
+     */
+    private static final List<String> PARENT_OPTIONS_WITHOUT_ARGUMENT = Arrays.asList("-z", "--gzip");
+
+    /**
+     * Options with a value which are divided among the workers, so all workers together keep the limits of the export
+     */
+    private static final List<String> DIVIDED_OPTIONS = Arrays.asList("-n", "--parallelism", "--max-rate");
+
+    /**
+     * Command line arguments of the export, without the options of the merging process
+     */
+    private List<String> arguments;
+
+    /**
+     * Number of worker processes
+     */
+    private int countShards;
+
+
+    /**
+     * Constructs a new sharded export
+     *
+     * @param arguments   command line arguments of the whole export
+     * @param countShards number of worker processes
+     * @param parallelism maximum number of concurrent requests of the whole export
+     * @param maxRate     maximum number of requests per second of the whole export, 0 for unlimited
+     */
+    public ShardedExport(String[] arguments, int countShards, int parallelism, double maxRate)
+    {
+        this.arguments = getWorkerArguments(arguments, countShards, parallelism, maxRate);
+        this.countShards = countShards;
+    }
+
+    /**
+     * Removes the options of the merging process out of the command line arguments and divides the request limits
+     * among the workers. Every worker keeps at least one connection, so with more shards than connections the workers
+     * together use more connections than given.
+     *
+     * @param arguments   command line arguments of the whole export
+     * @param countShards number of worker processes
+     * @param parallelism maximum number of concurrent requests of the whole export
+     * @param maxRate     maximum number of requests per second of the whole export, 0 for unlimited
+     * @return arguments for the workers
+     */
+    private static List<String> getWorkerArguments(String[] arguments, int countShards, int parallelism,
+                                                   double maxRate)
+    {
+        List<String> workerArguments = new ArrayList<>();
+
+        for (int i = 0; i < arguments.length; i++) {
+            if (PARENT_OPTIONS_WITH_ARGUMENT.contains(arguments[i]) || DIVIDED_OPTIONS.contains(arguments[i]))
+                i++; // skip the value as well
+            else if (!isParentOption(arguments[i]))
+                workerArguments.add(arguments[i]);
+        }
+
+        workerArguments.addAll(Arrays.asList("-n", Integer.toString(Math.max(1, parallelism / countShards))));
+
+        // a divided rate stays above 0, which would mean unlimited
+        if (maxRate > 0)
+            workerArguments.addAll(Arrays.asList("--max-rate", Double.toString(maxRate / countShards)));
+
+        return workerArguments;
+    }
+
+    /**
+     * Checks if an argument is an option of the merging process or a divided option with its value attached, e.g.
+     * "--output=x.csv" or "-ox.csv", or without value
+     *
+     * @param argument command line argument
+     * @return true if the argument isn't passed to the workers as it is
+     */
+    private static boolean isParentOption(String argument)
+    {
+        String name = argument;
+
+        if (argument.startsWith("--") && argument.contains("="))
+            name = argument.substring(0, argument.indexOf('='));
+        else if (argument.startsWith("-") && !argument.startsWith("--") && argument.length() > 2)
+            name = argument.substring(0, 2);
+
+        return PARENT_OPTIONS_WITH_ARGUMENT.contains(name) || PARENT_OPTIONS_WITHOUT_ARGUMENT.contains(name)
+                || DIVIDED_OPTIONS.contains(name);
+    }
+
+    /**
+     * Starts all workers, waits for them and returns their part files
+     *
+     * @param partDirectory directory for the part files
+     * @return part files in order of the time period
+     * @throws IOException          if a worker couldn't be started or failed
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public List<Path> run(Path partDirectory) throws IOException, InterruptedException
+    {
+        List<String> programCommand = getProgramCommand();
+        List<Process> workers = new ArrayList<>();
+        List<Path> partFiles = new ArrayList<>();
+
+        try {
+            for (int index = 1; index <= countShards; index++) {
+                Path partFile = partDirectory.resolve("part-" + index + ".csv" + GzipFiles.EXTENSION);
+                List<String> command = new ArrayList<>(programCommand);
+
+                command.addAll(arguments);
+                command.addAll(Arrays.asList("--shard", index + "/" + countShards, "-o", partFile.toString()));
+
+                // workers write their statistics to the same console as this process
+                workers.add(new ProcessBuilder(command).inheritIO().start());
+                partFiles.add(partFile);
+            }
+
+            List<String> failedShards = new ArrayList<>();
+
+            for (int index = 1; index <= countShards; index++)
+                if (workers.get(index - 1).waitFor() != 0)
+                    failedShards.add(index + "/" + countShards);
+
+            if (!failedShards.isEmpty())
+                throw new IOException("Shards " + String.join(", ", failedShards) + " failed");
+
+            return partFiles;
+        } finally {
+            for (Process worker : workers)
+                worker.destroy();
+        }
+    }
+
+    /**
+     * Gets the command starting this program again, a Java VM with the class path of this process or the native
+     * executable itself
+     *
+     * @return command without arguments
+     * @throws IOException if the native executable couldn't be determined
+     */
+    private static List<String> getProgramCommand() throws IOException
+    {
+        // set in native executables, which have neither a Java home nor a class path (Linux only)
+        if (System.getProperty("org.graalvm.nativeimage.imagecode") != null)
+            return Collections.singletonList(Paths.get("/proc/self/exe").toRealPath().toString());
+
+        return Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+                System.getProperty("java.class.path"), Program.class.getName());
+    }
+
+    /**
+     * Deletes the part files and their directory
+     *
+     * @param partDirectory directory of the part files
+     */
+    public static void deleteParts(Path partDirectory)
+    {
+        File[] files = partDirectory.toFile().listFiles();
+
+        if (files != null)
+            for (File file : files)
+                file.delete();
+
+        partDirectory.toFile().delete();
+    }
+}
@@ -0,0 +1,519 @@
+package de.lippertmarkus.rapla2csv;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans the HTML of a rapla page for elements with CSS class tooltip without building the document tree of the whole
+ * page. Only the content of the tooltips is kept and parsed to HTML elements, all other markup is skipped while
+ * reading. On month pages, the tooltips get the day number of their cell as attribute.
+ */
+public class TooltipScanner
+{
+    /**
+     * CSS class of the elements containing the lesson information
+     */
+    private static final String TOOLTIP_CLASS = "tooltip";
+
+    /**
+     * Number of bytes at the beginning of a page which are searched for a charset declaration
+     */
+    private static final int CHARSET_DETECTION_LENGTH = 1024;
+
+    /**
+     * Pattern for charset declarations in meta tags
+     */
+    private static final Pattern CHARSET_PATTERN = Pattern.compile("(?i)charset\\s*=\\s*[\"']?([-_a-zA-Z0-9]+)");
+
+    /**
+     * Reader for the page content
+     */
+    private Reader reader;
+
+    /**
+     * Buffer for reading the page content
+     */
+    private char[] buffer = new char[8192];
+
+    /**
+     * Position of the next character in the buffer
+     */
+    private int position = 0;
+
+    /**
+     * Number of valid characters in the buffer
+     */
+    private int limit = 0;
+
+    /**
+     * Content of the tooltip which is currently read, null if outside of a tooltip
+     */
+    private StringBuilder tooltip;
+
+    /**
+     * Tag name of the tooltip which is currently read
+     */
+    private String tooltipTagName;
+
+    /**
+     * Number of open elements with the tag name of the tooltip inside the current tooltip, including the tooltip itself
+     */
+    private int tooltipDepth;
+
+    /**
+     * Text of the day number element of a month page which is currently read, null if outside of one
+     */
+    private StringBuilder dayNumber;
+
+    /**
+     * Tag name of the day number element which is currently read
+     */
+    private String dayNumberTagName;
+
+    /**
+     * Number of open elements with the tag name of the day number element inside it, including the element itself
+     */
+    private int dayNumberDepth;
+
+    /**
+     * Day number of the last cell of a month page, null on week pages
+     */
+    private String currentDay;
+
+    /**
+     * Selection of the lessons, tooltips which can't match aren't parsed
+     */
+    private LessonFilter filter;
+
+    /**
+     * Counter for tooltips which weren't parsed as they can't match the filter
+     */
+    private int countRejectedTooltips = 0;
+
+    /**
+     * Content of the start tag which is currently read outside of a tooltip
+     */
+    private StringBuilder currentTag = new StringBuilder();
+
+    /**
+     * Whether read characters are appended to the current tag
+     */
+    private boolean recordingTag = false;
+
+
+    /**
+     * Constructs a new scanner
+     *
+     * @param reader reader for the page content
+     * @param filter selection of the lessons
+     */
+    private TooltipScanner(Reader reader, LessonFilter filter)
+    {
+        this.reader = reader;
+        this.filter = filter;
+    }
+
+    /**
+     * Gets all HTML elements with CSS class tooltip of a rapla page. On month pages, every tooltip gets the day number
+     * of its cell as attribute (see CalendarView.DAY_ATTRIBUTE).
+     *
+     * @param response rapla page to scan
+     * @return all tooltip elements in order of appearance
+     * @throws IOException if the page couldn't be decoded
+     */
+    public static Elements scan(RaplaResponse response) throws IOException
+    {
+        return scan(response, LessonFilter.ALL, MetricsRegistry.NONE);
+    }
+
+    /**
+     * Gets the HTML elements with CSS class tooltip of a rapla page which may match a filter. The raw HTML of every
+     * tooltip is checked before it's parsed, so most of the other tooltips are never parsed.
+     *
+     * @param response rapla page to scan
+     * @param filter   selection of the lessons, see LessonFilter.mayMatch
+     * @param metrics  receiver of the number of tooltips rejected by the filter
+     * @return tooltip elements which may match the filter in order of appearance
+     * @throws IOException if the page couldn't be decoded
+     */
+    public static Elements scan(RaplaResponse response, LessonFilter filter, MetricsRegistry metrics)
+            throws IOException
+    {
+        byte[] body = response.getBody();
+        Charset charset = response.getCharset() != null ? Charset.forName(response.getCharset()) : detectCharset(body);
+        int offset = hasUtf8ByteOrderMark(body) ? 3 : 0;
+
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(body, offset, body.length - offset), charset);
+
+        TooltipScanner scanner = new TooltipScanner(reader, filter);
+        Elements tooltips = scanner.scanTooltips(response.getUri().toString());
+
+        if (scanner.countRejectedTooltips > 0)
+            metrics.count("rapla_lessons_filtered_total", "stage", "raw", scanner.countRejectedTooltips);
+
+        return tooltips;
+    }
+
+    /**
+     * Determines the charset out of the meta tags at the beginning of the page
+     *
+     * @param body raw page content
+     * @return declared charset or UTF-8 if none is declared
+     */
+    private static Charset detectCharset(byte[] body)
+    {
+        String head = new String(body, 0, Math.min(body.length, CHARSET_DETECTION_LENGTH), StandardCharsets.ISO_8859_1);
+        Matcher matcher = CHARSET_PATTERN.matcher(head);
+
+        try {
+            if (matcher.find())
+                return Charset.forName(matcher.group(1));
+        } catch (IllegalArgumentException e) {
+            // unknown charset, use default
+        }
+
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Checks if the page starts with an UTF-8 byte order mark
+     *
+     * @param body raw page content
+     * @return true if there's a byte order mark
+     */
+    private static boolean hasUtf8ByteOrderMark(byte[] body)
+    {
+        return body.length >= 3 && (body[0] & 0xFF) == 0xEF && (body[1] & 0xFF) == 0xBB && (body[2] & 0xFF) == 0xBF;
+    }
+
+    /**
+     * Reads the whole page and collects the tooltips
+     *
+     * @param baseUri link of the page for resolving relative links
+     * @return all tooltip elements
+     * @throws IOException if the page couldn't be read
+     */
+    private Elements scanTooltips(String baseUri) throws IOException
+    {
+        Elements tooltips = new Elements();
+        int c;
+
+        while ((c = read()) != -1) {
+            if (c != '<') {
+                if (dayNumber != null)
+                    dayNumber.append((char) c);
+
+                continue;
+            }
+
+            readTag();
+
+            // tooltip is complete when its own end tag was read
+            if (tooltip != null && tooltipDepth == 0) {
+                addTooltip(tooltips, baseUri);
+                tooltip = null;
+            }
+        }
+
+        // tooltip wasn't closed until end of page
+        if (tooltip != null)
+            addTooltip(tooltips, baseUri);
+
+        return tooltips;
+    }
+
+    /**
+     * Reads a tag after its opening angle bracket. Comments, doctype and raw text of scripts and styles are skipped.
+     * Start tags with the tooltip class begin a new tooltip.
+     *
+     * @throws IOException if the page couldn't be read
+     */
+    private void readTag() throws IOException
+    {
+        int c = peek();
+
+        if (c == '!') {
+            read();
+            skipUntil(peek() == '-' ? "-->" : ">");
+        } else if (c == '/') {
+            read();
+            String tagName = readName();
+            skipUntil(">");
+
+            if (tooltip != null && tagName.equalsIgnoreCase(tooltipTagName))
+                tooltipDepth--;
+
+            if (dayNumber != null && tagName.equalsIgnoreCase(dayNumberTagName) && --dayNumberDepth == 0) {
+                currentDay = dayNumber.toString().trim();
+                dayNumber = null;
+            }
+        } else if (isLetter(c)) {
+            readStartTag();
+        }
+    }
+
+    /**
+     * Reads a start tag with its attributes. If the tag has the tooltip class and no tooltip is read yet, a new
+     * tooltip is started with this tag.
+     *
+     * @throws IOException if the page couldn't be read
+     */
+    private void readStartTag() throws IOException
+    {
+        boolean insideTooltip = tooltip != null;
+
+        // record the tag outside of tooltips, as it may begin a new one
+        if (!insideTooltip) {
+            currentTag.setLength(0);
+            currentTag.append('<');
+            recordingTag = true;
+        }
+
+        String tagName = readName();
+        String classes = "";
+        boolean selfClosing = false;
+        int c;
+
+        while ((c = skipWhitespace()) != -1) {
+            if (c == '>') {
+                read();
+                break;
+            } else if (c == '/') {
+                read();
+                selfClosing = true;
+                continue;
+            }
+
+            selfClosing = false;
+            String attributeName = readName();
+
+            if (attributeName.isEmpty()) {
+                read(); // stray character like '='
+                continue;
+            }
+
+            if (skipWhitespace() == '=') {
+                read();
+                skipWhitespace();
+                String value = readAttributeValue();
+
+                if (attributeName.equalsIgnoreCase("class"))
+                    classes = value;
+            }
+        }
+
+        recordingTag = false;
+
+        if (!insideTooltip && hasClass(classes, TOOLTIP_CLASS)) {
+            tooltip = new StringBuilder(currentTag);
+            tooltipTagName = tagName;
+            tooltipDepth = selfClosing ? 0 : 1;
+        } else if (insideTooltip && tagName.equalsIgnoreCase(tooltipTagName) && !selfClosing) {
+            tooltipDepth++;
+        }
+
+        if (!insideTooltip && dayNumber == null && !selfClosing && hasClass(classes, CalendarView.DAY_NUMBER_CLASS)) {
+            dayNumber = new StringBuilder();
+            dayNumberTagName = tagName;
+            dayNumberDepth = 1;
+        } else if (dayNumber != null && tagName.equalsIgnoreCase(dayNumberTagName) && !selfClosing) {
+            dayNumberDepth++;
+        }
+
+        if (tagName.equalsIgnoreCase("script") || tagName.equalsIgnoreCase("style"))
+            skipUntil("</" + tagName.toLowerCase());
+    }
+
+    /**
+     * Reads the value of an attribute after its equals sign, quoted or unquoted
+     *
+     * @return the value of the attribute
+     * @throws IOException if the page couldn't be read
+     */
+    private String readAttributeValue() throws IOException
+    {
+        StringBuilder value = new StringBuilder();
+        int c = peek();
+
+        if (c == '"' || c == '\'') {
+            int quote = read();
+
+            while ((c = read()) != -1 && c != quote)
+                value.append((char) c);
+        } else {
+            while ((c = peek()) != -1 && c != '>' && !Character.isWhitespace(c))
+                value.append((char) read());
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Checks if a class attribute value contains a class
+     *
+     * @param classes  value of a class attribute
+     * @param cssClass class to look for
+     * @return true if the class is contained
+     */
+    private static boolean hasClass(String classes, String cssClass)
+    {
+        for (String containedClass : classes.trim().split("\\s+"))
+            if (containedClass.equalsIgnoreCase(cssClass))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Parses the current tooltip and adds it to the tooltips, if it may match the filter
+     *
+     * @param tooltips tooltips of the page
+     * @param baseUri  link of the page for resolving relative links
+     */
+    private void addTooltip(Elements tooltips, String baseUri)
+    {
+        if (filter.mayMatch(tooltip))
+            tooltips.add(parseTooltip(baseUri));
+        else
+            countRejectedTooltips++;
+    }
+
+    /**
+     * Parses the content of the current tooltip to an HTML element, with the day number of its cell on month pages
+     *
+     * @param baseUri link of the page for resolving relative links
+     * @return the tooltip element
+     */
+    private Element parseTooltip(String baseUri)
+    {
+        Element element = Jsoup.parseBodyFragment(tooltip.toString(), baseUri).body().child(0);
+
+        if (currentDay != null)
+            element.attr(CalendarView.DAY_ATTRIBUTE, currentDay);
+
+        return element;
+    }
+
+    /**
+     * Reads a tag or attribute name
+     *
+     * @return the name, empty if there's no name at the current position
+     * @throws IOException if the page couldn't be read
+     */
+    private String readName() throws IOException
+    {
+        StringBuilder name = new StringBuilder();
+
+        while (isNameChar(peek()))
+            name.append((char) read());
+
+        return name.toString();
+    }
+
+    /**
+     * Skips all whitespace characters
+     *
+     * @return the next character after the whitespace or -1 at the end of the page
+     * @throws IOException if the page couldn't be read
+     */
+    private int skipWhitespace() throws IOException
+    {
+        while (Character.isWhitespace(peek()))
+            read();
+
+        return peek();
+    }
+
+    /**
+     * Skips all characters until after the given text
+     *
+     * @param text text to skip to
+     * @throws IOException if the page couldn't be read
+     */
+    private void skipUntil(String text) throws IOException
+    {
+        int matched = 0;
+        int c;
+
+        while (matched < text.length() && (c = read()) != -1) {
+            if (Character.toLowerCase(c) == text.charAt(matched))
+                matched++;
+            else
+                matched = Character.toLowerCase(c) == text.charAt(0) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Reads the next character and appends it to the current tooltip or the recorded tag
+     *
+     * @return the character or -1 at the end of the page
+     * @throws IOException if the page couldn't be read
+     */
+    private int read() throws IOException
+    {
+        if (position == limit && !fillBuffer())
+            return -1;
+
+        char c = buffer[position++];
+
+        if (tooltip != null)
+            tooltip.append(c);
+        else if (recordingTag)
+            currentTag.append(c);
+
+        return c;
+    }
+
+    /**
+     * Gets the next character without reading it
+     *
+     * @return the character or -1 at the end of the page
+     * @throws IOException if the page couldn't be read
+     */
+    private int peek() throws IOException
+    {
+        if (position == limit && !fillBuffer())
+            return -1;
+
+        return buffer[position];
+    }
+
+    /**
+     * Reads the next characters of the page into the buffer
+     *
+     * @return false at the end of the page
+     * @throws IOException if the page couldn't be read
+     */
+    private boolean fillBuffer() throws IOException
+    {
+        limit = reader.read(buffer);
+        position = 0;
+
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isLetter(int c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isNameChar(int c)
+    {
+        return c != -1 && c != '>' && c != '/' && c != '=' && !Character.isWhitespace(c);
+    }
+}
@@ -0,0 +1,59 @@
+package de.lippertmarkus.rapla2csv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Name and version of the application as constants. The version is read from version.properties, which the build fills
+ * in with the version of build.gradle, so it's also available without a manifest, e.g. when running from the class
+ * files or as native executable.
+ */
+public class Version
+{
+    /**
+     * Name of the application
+     */
+    public static final String TITLE = "rapla2csv";
+
+    /**
+     * Version of the application
+     */
+    public static final String VERSION = loadVersion();
+
+    /**
+     * Author of the application
+     */
+    public static final String VENDOR = "Markus Lippert";
+
+
+    private Version()
+    {
+    }
+
+    /**
+     * Reads the version out of version.properties or, if it wasn't filled in by the build, out of the jar manifest
+     *
+     * @return the version or "unknown" if neither provides it
+     */
+    private static String loadVersion()
+    {
+        try (InputStream in = Version.class.getResourceAsStream("version.properties")) {
+            if (in != null) {
+                Properties properties = new Properties();
+                properties.load(in);
+                String version = properties.getProperty("version");
+
+                if (version != null && !version.startsWith("$"))
+                    return version;
+            }
+        } catch (IOException e) {
+            // use the manifest
+        }
+
+        Package versionPackage = Version.class.getPackage();
+        String version = versionPackage != null ? versionPackage.getImplementationVersion() : null;
+
+        return version != null ? version : "unknown";
+    }
+}